@@ -0,0 +1,283 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks running every pool engine through the same scenarios. The engine is a parameter, so a new engine only needs a
+ * case in {@link #create(String)} and an entry in the engine lists.<br>
+ * Scenarios<br>
+ * -uncontendedAcquireRelease: one thread, free resources always available.<br>
+ * -acquireRelease: the same loop swept from one thread up to the number of processors by {@link #main(String[])}.<br>
+ * -acquireEmptyWithTimeout: acquire on a pool with nothing free, timing out after a microsecond.<br>
+ * -addRemoveChurn: remove a free resource and add it back, in pools of up to 50k members.<br>
+ * -closeNowWithWaiters: closeNow while threads are parked in acquire.<br>
+ * Run with run.sh. main writes every result, thread sweep included, to one JSON file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    static Pool<Integer> create(String engine) {
+
+        if ("LockProg".equals(engine)) {
+            return new LockProg<Integer>();
+        }
+        if ("LockFreeProg".equals(engine)) {
+            return new LockFreeProg<Integer>();
+        }
+        if ("StripedLockProg".equals(engine)) {
+            return new StripedLockProg<Integer>();
+        }
+        if ("ResourcePool".equals(engine)) {
+            return new ResourcePoolAdapter<Integer>();
+        }
+        throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+
+    static Pool<Integer> open(String engine, int size) {
+
+        Pool<Integer> pool = create(engine);
+        pool.open();
+        for (int i = 0; i < size; i++) {
+            pool.add(i);
+        }
+        return pool;
+    }
+
+    @State(Scope.Benchmark)
+    public static class PoolState {
+        @Param({ "LockProg", "LockFreeProg", "StripedLockProg", "ResourcePool" })
+        public String engine;
+
+        @Param({ "4", "64" })
+        public int poolSize;
+
+        Pool<Integer> pool;
+
+        @Setup
+        public void setUp() {
+
+            pool = open(engine, poolSize);
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+
+            pool.closeNow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyState {
+        @Param({ "LockProg", "LockFreeProg", "StripedLockProg", "ResourcePool" })
+        public String engine;
+
+        Pool<Integer> pool;
+
+        @Setup
+        public void setUp() throws InterruptedException {
+
+            pool = open(engine, 1);
+            pool.acquire();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+
+            pool.closeNow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChurnState {
+        @Param({ "LockProg", "LockFreeProg", "StripedLockProg", "ResourcePool" })
+        public String engine;
+
+        @Param({ "1000", "50000" })
+        public int poolSize;
+
+        Pool<Integer> pool;
+
+        int next;
+
+        @Setup
+        public void setUp() {
+
+            pool = open(engine, poolSize);
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+
+            pool.closeNow();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CloseState {
+        @Param({ "LockProg", "LockFreeProg", "StripedLockProg", "ResourcePool" })
+        public String engine;
+
+        @Param({ "16" })
+        public int waiterCount;
+
+        Pool<Integer> pool;
+
+        final List<Thread> waiters = new ArrayList<Thread>();
+
+        @Setup(Level.Invocation)
+        public void setUp() throws InterruptedException {
+
+            pool = open(engine, 1);
+            pool.acquire();
+            for (int i = 0; i < waiterCount; i++) {
+                Thread waiter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        try {
+                            pool.acquire();
+                        } catch (IllegalStateException e) {
+                            // closed under us, which is the point
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                waiter.setDaemon(true);
+                waiter.start();
+                waiters.add(waiter);
+            }
+            for (Thread waiter : waiters) {
+                while (waiter.getState() != Thread.State.WAITING) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws InterruptedException {
+
+            for (Thread waiter : waiters) {
+                waiter.join(1000);
+            }
+            waiters.clear();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer uncontendedAcquireRelease(PoolState state) throws InterruptedException {
+
+        Integer resource = state.pool.acquire();
+        state.pool.release(resource);
+        return resource;
+    }
+
+    @Benchmark
+    public Integer acquireRelease(PoolState state) throws InterruptedException {
+
+        Integer resource = state.pool.acquire();
+        state.pool.release(resource);
+        return resource;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer acquireEmptyWithTimeout(EmptyState state) throws InterruptedException {
+
+        return state.pool.acquire(1, TimeUnit.MICROSECONDS);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean addRemoveChurn(ChurnState state) throws InterruptedException {
+
+        Integer resource = state.next;
+        state.next = (state.next + 1) % state.poolSize;
+        state.pool.remove(resource);
+        return state.pool.add(resource);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.AverageTime)
+    public void closeNowWithWaiters(CloseState state) throws InterruptedException {
+
+        state.pool.closeNow();
+    }
+
+    /**
+     * Runs the scenarios, then sweeps acquireRelease over 1, 2, 4 ... threads up to the number of processors, and writes every
+     * result to one JSON file.
+     *
+     * @param args JMH command line options, plus the JSON file as the last argument when it ends with .json
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, FileNotFoundException {
+
+        String resultFile = "pool-benchmark.json";
+        if (args.length > 0 && args[args.length - 1].endsWith(".json")) {
+            resultFile = args[args.length - 1];
+            String[] jmhArgs = new String[args.length - 1];
+            System.arraycopy(args, 0, jmhArgs, 0, jmhArgs.length);
+            args = jmhArgs;
+        }
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String prefix = PoolBenchmark.class.getName() + ".";
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        results.addAll(new Runner(new OptionsBuilder().parent(commandLine)
+                .include(prefix + "(uncontendedAcquireRelease|acquireEmptyWithTimeout|addRemoveChurn|closeNowWithWaiters)$")
+                .build()).run());
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= processors; threads <<= 1) {
+            results.addAll(sweep(commandLine, prefix, threads));
+            if (threads < processors && threads << 1 > processors) {
+                results.addAll(sweep(commandLine, prefix, processors));
+            }
+        }
+
+        PrintStream out = new PrintStream(resultFile);
+        try {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Collection<RunResult> sweep(CommandLineOptions commandLine, String prefix, int threads)
+            throws RunnerException {
+
+        return new Runner(new OptionsBuilder().parent(commandLine).include(prefix + "acquireRelease$").threads(threads).build())
+                .run();
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the benchmarks drive {@link ResourcePool} through the {@link Pool} contract.
+ *
+ * @param <R>
+ */
+public class ResourcePoolAdapter<R> implements Pool<R> {
+    private final ResourcePool<R> pool = new ResourcePool<R>();
+
+    @Override
+    public void open() {
+
+        pool.open();
+    }
+
+    @Override
+    public boolean isOpen() {
+
+        return pool.isOpen();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+
+        pool.close();
+    }
+
+    @Override
+    public void closeNow() throws InterruptedException {
+
+        pool.closeNow();
+    }
+
+    @Override
+    public R acquire() throws InterruptedException {
+
+        return pool.acquire();
+    }
+
+    @Override
+    public R acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return pool.acquire(timeout, timeUnit);
+    }
+
+    @Override
+    public void release(R resource) {
+
+        pool.release(resource);
+    }
+
+    @Override
+    public boolean add(R resource) {
+
+        return pool.add(resource);
+    }
+
+    /**
+     * ResourcePool.remove waits for as long as the resource is still pooled, so it never returns for a free resource. The
+     * benchmarks only remove free resources, which removeNow does.
+     */
+    @Override
+    public boolean remove(R resource) throws InterruptedException {
+
+        return pool.removeNow(resource);
+    }
+
+    @Override
+    public boolean removeNow(R resource) throws InterruptedException {
+
+        return pool.removeNow(resource);
+    }
+}
@@ -0,0 +1,21 @@
+#!/bin/sh
+# Builds and runs the pool benchmarks.
+#
+# JMH_CP must hold jmh-core, jmh-generator-annprocess and their dependencies (jopt-simple, commons-math3). Arguments are
+# passed to JMH, and a last argument ending in .json names the result file, pool-benchmark.json by default:
+#
+#   JMH_CP=... ./run.sh -p engine=LockProg,LockFreeProg results.json
+set -e
+cd "$(dirname "$0")"
+if [ -z "$JMH_CP" ]; then
+    echo "JMH_CP is not set" >&2
+    exit 1
+fi
+rm -rf target
+mkdir -p target/src target/classes
+cp ../src/*.java target/src/
+rm -f target/src/*Test.java
+# the ResourcePool snippet lives in a file that does not match its class name
+cp ../../ResourcePool-ChatGPT.java target/src/ResourcePool.java
+javac -cp "$JMH_CP" -d target/classes target/src/*.java *.java
+java -cp "target/classes:$JMH_CP" PoolBenchmark "$@"
@@ -0,0 +1,232 @@
+/**
+ * List of free resources, handing them out in the order of a {@link SelectionPolicy}. Every resource in the pool owns one node
+ * for its whole membership, so a resource is linked and unlinked without searching for it.<br>
+ * Design Decisions<br>
+ * -Intrusive doubly linked lists. The pool indexes the nodes by resource, which makes remove and contains constant time
+ * instead of a scan of the queue.<br>
+ * -FIFO and LIFO share one list, released resources join its tail and only the end taken from differs. The head
+ * is always the resource free the longest, which is the one to evict.<br>
+ * -Least used keeps one list per acquire count, 64 of them in a ring, and a bit mask of the non-empty ones. The least used
+ * list is the first set bit from the lowest count, so taking is a rotate and a trailing zero count. Counts are clamped to the
+ * 64 the ring covers, a resource further behind joins the lowest list at its head.<br>
+ * -Not thread safe. The owning pool guards it with its own lock.<br>
+ *
+ * @param <R>
+ */
+class FreeList<R> {
+    private static final int USE_BUCKETS = 64;
+
+    private final SelectionPolicy policy;
+
+    private final Node<R>[] heads;
+
+    private final Node<R>[] tails;
+
+    /**
+     * The non-empty lists, one bit per list.
+     */
+    private long nonEmpty;
+
+    /**
+     * The lowest acquire count of a free resource, least used only. Lower counts are raised to it, it only goes down when the list
+     * empties.
+     */
+    private long lowest;
+
+    private int size;
+
+    static final class Node<R> {
+        final R resource;
+
+        Node<R> prev;
+
+        Node<R> next;
+
+        /**
+         * <code>true</code> while the resource is free, that is linked into the list.
+         */
+        boolean linked;
+
+        /**
+         * When the resource was last acquired, in {@link System#nanoTime()} units. Only stamped while an event listener is
+         * registered, <code>0</code> otherwise.
+         */
+        long acquiredAt;
+
+        /**
+         * When the resource joined the pool, in {@link System#nanoTime()} units.
+         */
+        long createdAt;
+
+        /**
+         * The eviction of the resource while it is free, or its leak check while it is acquired. Created the first time the pool
+         * schedules either.
+         */
+        TimerWheel.Timeout<Node<R>> expiry;
+
+        /**
+         * When the resource last passed validation, in {@link System#nanoTime()} units.
+         */
+        long lastValidated;
+
+        /**
+         * <code>true</code> while a released resource is being validated. It stays acquired until then.
+         */
+        boolean validating;
+
+        /**
+         * <code>true</code> when the resource was checked out with its borrow validation due.
+         */
+        boolean due;
+
+        /**
+         * Where a sampled lease was acquired, <code>null</code> unless the lease is watched for leaks.
+         */
+        Throwable leakTrace;
+
+        /**
+         * When the watched lease was acquired, in {@link System#nanoTime()} units.
+         */
+        long leakSince;
+
+        /**
+         * How many times the resource was acquired, clamped by the least used list.
+         */
+        long uses;
+
+        /**
+         * The stamp of the resource's leases, odd while one is open. See {@link Lease}.
+         */
+        volatile int leaseGeneration;
+
+        Node(R resource) {
+
+            this.resource = resource;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    FreeList(SelectionPolicy policy) {
+
+        this.policy = policy;
+        int lists = policy == SelectionPolicy.LEAST_USED ? USE_BUCKETS : 1;
+        heads = new Node[lists];
+        tails = new Node[lists];
+    }
+
+    /**
+     * Links a resource that just became free.
+     */
+    void add(Node<R> node) {
+
+        int i = 0;
+        boolean behind = false;
+        if (policy == SelectionPolicy.LEAST_USED) {
+            if (size == 0) {
+                lowest = node.uses;
+            } else if (node.uses - lowest < 0L) {
+                // used less than every free resource, first in line
+                node.uses = lowest;
+                behind = true;
+            } else if (node.uses - lowest >= USE_BUCKETS) {
+                node.uses = lowest + USE_BUCKETS - 1;
+            }
+            i = (int) node.uses & (USE_BUCKETS - 1);
+        }
+        if (tails[i] == null) {
+            node.prev = null;
+            node.next = null;
+            heads[i] = node;
+            tails[i] = node;
+            nonEmpty |= 1L << i;
+        } else if (behind) {
+            node.prev = null;
+            node.next = heads[i];
+            heads[i].prev = node;
+            heads[i] = node;
+        } else {
+            node.prev = tails[i];
+            node.next = null;
+            tails[i].next = node;
+            tails[i] = node;
+        }
+        node.linked = true;
+        size++;
+    }
+
+    /**
+     * @return the node the selection policy hands out next, unlinked, or <code>null</code> if the list is empty
+     */
+    Node<R> take() {
+
+        if (policy != SelectionPolicy.LIFO) {
+            return poll();
+        }
+        Node<R> node = tails[0];
+        if (node != null) {
+            remove(node);
+        }
+        return node;
+    }
+
+    /**
+     * @return the node that has been free the longest, the least used first when counting uses, unlinked, or
+     *         <code>null</code> if the list is empty
+     */
+    Node<R> poll() {
+
+        if (nonEmpty == 0L) {
+            return null;
+        }
+        int i = 0;
+        if (policy == SelectionPolicy.LEAST_USED) {
+            int skip = Long.numberOfTrailingZeros(Long.rotateRight(nonEmpty, (int) lowest & (USE_BUCKETS - 1)));
+            lowest += skip;
+            i = (int) lowest & (USE_BUCKETS - 1);
+        }
+        Node<R> node = heads[i];
+        remove(node);
+        return node;
+    }
+
+    /**
+     * Unlinks the node.
+     *
+     * @return <code>true</code> if the node was in the list
+     */
+    boolean remove(Node<R> node) {
+
+        if (!node.linked) {
+            return false;
+        }
+        int i = policy == SelectionPolicy.LEAST_USED ? (int) node.uses & (USE_BUCKETS - 1) : 0;
+        if (node.prev == null) {
+            heads[i] = node.next;
+            if (node.next == null) {
+                nonEmpty &= ~(1L << i);
+            }
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tails[i] = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        size--;
+        return true;
+    }
+
+    boolean isEmpty() {
+
+        return size == 0;
+    }
+
+    int size() {
+
+        return size;
+    }
+}
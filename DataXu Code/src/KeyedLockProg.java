@@ -0,0 +1,369 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of resources grouped by key, for example connections by backend host, with a cap per key and a cap over all keys.<br>
+ * Design Decisions<br>
+ * -Each key has its own factory-backed {@link LockProg}, created on first use, so acquire and release of one key only take
+ * that key's lock. The keys live in a ConcurrentHashMap.<br>
+ * -The global cap is a counter of free slots taken with a CAS before every creation, never a lock.<br>
+ * -When no slot is free, the idle resource free the longest in the least recently used key that has one is evicted to make
+ * room. Finding that key scans the keys, but only when the global cap is reached.<br>
+ * -When nothing can be evicted, the key's factory reports it is out of room and its acquirers wait. The key is queued as
+ * starving, once however often it fails, and is told to create again as soon as a slot frees up. A release while a starving
+ * key still has an acquirer waiting evicts an idle resource for it. Keys whose acquirers all gave up are dropped from the
+ * queue instead, so a timed out acquire never costs another key its resource.<br>
+ * -Keys are published under the monitor close takes, so a key first used while the pool closes is never left open.<br>
+ *
+ * @param <K>
+ * @param <R>
+ */
+public class KeyedLockProg<K, R> {
+    private volatile boolean isOpen = false;
+
+    private final KeyedResourceFactory<K, R> factory;
+
+    private final int maxPerKey;
+
+    /**
+     * Free slots under the global cap.
+     */
+    private final AtomicInteger slots;
+
+    private final ConcurrentHashMap<K, SubPool> pools = new ConcurrentHashMap<K, SubPool>();
+
+    /**
+     * Keys whose factory ran out of room while they had an acquirer waiting, each at most once.
+     */
+    private final ConcurrentLinkedQueue<SubPool> starving = new ConcurrentLinkedQueue<SubPool>();
+
+    /**
+     * The pool of one key. It is the factory of its own LockProg, which takes a global slot before creating and frees it when
+     * destroying.
+     */
+    final class SubPool implements ResourceFactory<R> {
+        final K key;
+
+        final LockProg<R> pool;
+
+        /**
+         * When the key was last acquired from, in {@link System#nanoTime()} units.
+         */
+        volatile long lastUsed;
+
+        /**
+         * <code>true</code> while the key is in the starving queue.
+         */
+        final AtomicBoolean starved = new AtomicBoolean();
+
+        SubPool(K key) {
+
+            this.key = key;
+            this.pool = new LockProg<R>(this, 0, maxPerKey);
+        }
+
+        @Override
+        public R create() {
+
+            if (!takeSlot()) {
+                if (starved.compareAndSet(false, true)) {
+                    starving.add(this);
+                }
+                // a slot freed before this key was queued did not see it, look once more
+                if (!takeSlot()) {
+                    return null;
+                }
+            }
+            boolean created = false;
+            try {
+                R resource = factory.create(key);
+                if (resource == null) {
+                    throw new IllegalStateException("Factory returned null");
+                }
+                created = true;
+                return resource;
+            } finally {
+                if (!created) {
+                    freeSlot();
+                }
+            }
+        }
+
+        @Override
+        public void destroy(R resource) {
+
+            try {
+                factory.destroy(key, resource);
+            } finally {
+                freeSlot();
+            }
+        }
+    }
+
+    /**
+     * @param factory creates the resources of every key
+     * @param maxPerKey the most resources one key may hold
+     * @param maxTotal the most resources all keys together may hold
+     */
+    public KeyedLockProg(KeyedResourceFactory<K, R> factory, int maxPerKey, int maxTotal) {
+
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        if (maxPerKey <= 0 || maxTotal <= 0) {
+            throw new IllegalArgumentException("maxPerKey and maxTotal must be positive");
+        }
+        this.factory = factory;
+        this.maxPerKey = maxPerKey;
+        this.slots = new AtomicInteger(maxTotal);
+    }
+
+    /**
+     * Opens the pool. No resource are allowed to be acquired unless the poll is open.
+     */
+    public synchronized void open() {
+
+        if (isOpen) {
+            throw new IllegalStateException("Already open");
+        }
+        isOpen = true;
+    }
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    public boolean isOpen() {
+
+        return isOpen;
+    }
+
+    /**
+     * Closes the pool of every key in turn, each blocking until its acquired resources are released, and destroys the free
+     * resources.
+     * 
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public synchronized void close() throws InterruptedException {
+
+        checkOpen();
+        isOpen = false;
+        for (SubPool sub : pools.values()) {
+            sub.pool.close();
+        }
+        pools.clear();
+        starving.clear();
+    }
+
+    /**
+     * Closes the pool of every key immediately without waiting for acquired resources to be released. Every resource is
+     * destroyed, acquired ones too, so their global slots are free again when the pool reopens.
+     * 
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public synchronized void closeNow() throws InterruptedException {
+
+        checkOpen();
+        isOpen = false;
+        for (SubPool sub : pools.values()) {
+            sub.pool.closeNow();
+        }
+        pools.clear();
+        starving.clear();
+    }
+
+    /**
+     * Blocks until a resource of the key is available. One is created if the key and the whole pool are below their caps, or if
+     * an idle resource of another key can be evicted to make room.
+     * 
+     * @param key the key of the resource
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     */
+    public R acquire(K key) throws InterruptedException {
+
+        SubPool sub = poolFor(key);
+        sub.lastUsed = System.nanoTime();
+        return sub.pool.acquire();
+    }
+
+    /**
+     * Tries to acquire a resource of the key within a given time. If a resource cannot be acquired within the timeout interval,
+     * null is returned.
+     * 
+     * @param key the key of the resource
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     */
+    public R acquire(K key, long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        SubPool sub = poolFor(key);
+        sub.lastUsed = System.nanoTime();
+        return sub.pool.acquire(timeout, timeUnit);
+    }
+
+    /**
+     * Release the resource back to the pool of its key. While other keys wait for room, an idle resource is evicted for them.
+     * 
+     * @param key the key the resource was acquired with
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    public void release(K key, R resource) {
+
+        if (key == null || resource == null) {
+            throw new NullPointerException();
+        }
+        SubPool sub = pools.get(key);
+        if (sub == null) {
+            checkOpen();
+            throw new IllegalStateException("No such resource in the pool");
+        }
+        sub.pool.release(resource);
+        if (!starving.isEmpty() && isStarving()) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the number of free resources of the key
+     */
+    public int getIdleCount(K key) {
+
+        SubPool sub = pools.get(key);
+        return sub == null ? 0 : sub.pool.getIdleCount();
+    }
+
+    /**
+     * @return the number of resources held by all keys together, free or acquired
+     */
+    public int getTotalCount() {
+
+        int total = 0;
+        for (SubPool sub : pools.values()) {
+            total += sub.pool.getInUseCount() + sub.pool.getIdleCount();
+        }
+        return total;
+    }
+
+    private SubPool poolFor(K key) throws InterruptedException {
+
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        checkOpen();
+        SubPool sub = pools.get(key);
+        if (sub == null) {
+            // under the monitor of close, so a pool published here is always closed by it
+            synchronized (this) {
+                checkOpen();
+                sub = pools.get(key);
+                if (sub == null) {
+                    // opened before it is published, so nobody sees a closed pool
+                    sub = new SubPool(key);
+                    sub.pool.open();
+                    pools.put(key, sub);
+                }
+            }
+        }
+        return sub;
+    }
+
+    /**
+     * Takes a slot under the global cap, evicting idle resources of other keys while there is none.
+     */
+    private boolean takeSlot() {
+
+        while (true) {
+            int free = slots.get();
+            if (free > 0) {
+                if (slots.compareAndSet(free, free - 1)) {
+                    return true;
+                }
+            } else if (!evictLeastRecentlyUsed()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Gives a slot back and tells the first starving key that still has an acquirer waiting to create again.
+     */
+    private void freeSlot() {
+
+        slots.incrementAndGet();
+        SubPool sub;
+        while ((sub = starving.poll()) != null) {
+            sub.starved.set(false);
+            if (sub.pool.capacityFreed()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the starving keys at the head of the queue whose acquirers all gave up.
+     * 
+     * @return <code>true</code> if a starving key still has an acquirer waiting
+     */
+    private boolean isStarving() {
+
+        SubPool sub;
+        while ((sub = starving.peek()) != null) {
+            if (sub.pool.getWaiterCount() > 0) {
+                return true;
+            }
+            // cleared first, so a key starving again in the meantime queues itself anew
+            sub.starved.set(false);
+            starving.remove(sub);
+        }
+        return false;
+    }
+
+    /**
+     * Evicts the resource free the longest in the least recently used key that has a free resource. Its destroy frees a slot.
+     * 
+     * @return <code>false</code> if no key has a free resource
+     */
+    private boolean evictLeastRecentlyUsed() {
+
+        while (true) {
+            SubPool lru = null;
+            for (SubPool sub : pools.values()) {
+                if (sub.pool.getIdleCount() > 0 && (lru == null || sub.lastUsed - lru.lastUsed < 0L)) {
+                    lru = sub;
+                }
+            }
+            if (lru == null) {
+                return false;
+            }
+            try {
+                if (lru.pool.evictIdle(1) > 0) {
+                    return true;
+                }
+            } catch (IllegalStateException e) {
+                // closed in the meantime
+                return false;
+            }
+            // acquired in the meantime, look again
+        }
+    }
+
+    private void checkOpen() {
+
+        if (!isOpen) {
+            throw new IllegalStateException("Not open");
+        }
+    }
+}
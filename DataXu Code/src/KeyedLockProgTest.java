@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KeyedLockProg}.
+ */
+public class KeyedLockProgTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final List<String> destroyed = new ArrayList<String>();
+
+    private KeyedResourceFactory<String, String> factory;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        factory = new KeyedResourceFactory<String, String>() {
+            @Override
+            public String create(String key) {
+
+                return key + created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(String key, String resource) {
+
+                synchronized (destroyed) {
+                    destroyed.add(resource);
+                }
+            }
+        };
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+
+        factory = null;
+    }
+
+    /**
+     * Test method for {@link KeyedLockProg#acquire(Object)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testAcquireException() throws InterruptedException {
+
+        new KeyedLockProg<String, String>(factory, 1, 1).acquire("a");
+    }
+
+    /**
+     * Each key grows to its own cap and reuses released resources.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testPerKeyCap() throws InterruptedException {
+
+        KeyedLockProg<String, String> pool = new KeyedLockProg<String, String>(factory, 2, 10);
+        pool.open();
+        Assert.assertEquals("a1", pool.acquire("a"));
+        Assert.assertEquals("a2", pool.acquire("a"));
+        Assert.assertNull(pool.acquire("a", 1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("b3", pool.acquire("b"));
+        pool.release("a", "a1");
+        Assert.assertEquals("a1", pool.acquire("a", 1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, pool.getTotalCount());
+    }
+
+    /**
+     * At the global cap, the idle resource of the least recently used key is evicted and destroyed to serve another key.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testGlobalCapEvictsLeastRecentlyUsed() throws InterruptedException {
+
+        KeyedLockProg<String, String> pool = new KeyedLockProg<String, String>(factory, 2, 3);
+        pool.open();
+        pool.release("a", pool.acquire("a"));
+        pool.release("b", pool.acquire("b"));
+        String c = pool.acquire("c");
+        Assert.assertEquals(3, pool.getTotalCount());
+        String c2 = pool.acquire("c");
+        Assert.assertEquals("c4", c2);
+        Assert.assertEquals(Arrays.asList("a1"), destroyed);
+        Assert.assertEquals(0, pool.getIdleCount("a"));
+        Assert.assertEquals(1, pool.getIdleCount("b"));
+        Assert.assertEquals(3, pool.getTotalCount());
+        pool.release("c", c);
+        pool.release("c", c2);
+        pool.close();
+        Assert.assertEquals(4, destroyed.size());
+    }
+
+    /**
+     * With every resource of the global cap acquired, another key waits until one is released, which is then evicted to make
+     * room for it.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testGlobalCapWaitsForRelease() throws InterruptedException {
+
+        final KeyedLockProg<String, String> pool = new KeyedLockProg<String, String>(factory, 2, 1);
+        pool.open();
+        final String a = pool.acquire("a");
+        Assert.assertNull(pool.acquire("b", 10, TimeUnit.MILLISECONDS));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release("a", a);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertEquals("b2", pool.acquire("b", 5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a1"), destroyed);
+        Assert.assertEquals(1, pool.getTotalCount());
+    }
+
+    /**
+     * A key whose acquire timed out is no longer starving, a release of another key keeps its resource.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testTimedOutKeyEvictsNothing() throws InterruptedException {
+
+        KeyedLockProg<String, String> pool = new KeyedLockProg<String, String>(factory, 1, 1);
+        pool.open();
+        Assert.assertEquals("a1", pool.acquire("a"));
+        Assert.assertNull(pool.acquire("b", 20, TimeUnit.MILLISECONDS));
+        pool.release("a", "a1");
+        Assert.assertTrue(destroyed.isEmpty());
+        Assert.assertEquals("a1", pool.acquire("a"));
+        Assert.assertEquals(1, created.get());
+        pool.release("a", "a1");
+        pool.close();
+        Assert.assertEquals(Arrays.asList("a1"), destroyed);
+    }
+
+    /**
+     * Test method for {@link KeyedLockProg#closeNow()}. Resources still acquired are destroyed too, so a reopened pool has its
+     * whole global cap.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCloseNowFreesSlots() throws InterruptedException {
+
+        KeyedLockProg<String, String> pool = new KeyedLockProg<String, String>(factory, 2, 2);
+        pool.open();
+        Assert.assertEquals("a1", pool.acquire("a"));
+        Assert.assertEquals("a2", pool.acquire("a"));
+        pool.closeNow();
+        Assert.assertEquals(2, destroyed.size());
+        pool.open();
+        Assert.assertEquals("b3", pool.acquire("b", 200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("b4", pool.acquire("b", 200, TimeUnit.MILLISECONDS));
+        pool.closeNow();
+    }
+}
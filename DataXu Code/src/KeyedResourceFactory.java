@@ -0,0 +1,29 @@
+/**
+ * Creates and destroys the resources of a {@link KeyedLockProg}, for one key at a time. The pool calls it without holding any
+ * lock.
+ *
+ * @param <K>
+ * @param <R>
+ */
+public interface KeyedResourceFactory<K, R> {
+
+    /**
+     * Creates a new resource for the key. Every call must return a resource that is not already in the pool.
+     *
+     * @param key the key the resource is for
+     * @return the new resource, never <code>null</code>
+     * @throws RuntimeException if the resource cannot be created, passed on to the acquire that asked for it
+     */
+    R create(K key);
+
+    /**
+     * Releases whatever the resource holds. Called for resources the pool drops, evicted to make room for another key or still
+     * free when the pool closes. Does nothing by default.
+     *
+     * @param key the key of the resource
+     * @param resource the resource dropped by the pool
+     */
+    default void destroy(K key, R resource) {
+
+    }
+}
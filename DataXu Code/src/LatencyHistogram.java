@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations into log-linear buckets and reports percentiles.<br>
+ * Design Decisions<br>
+ * -Every power of two is split into 8 linear buckets, so a reported percentile is within 12.5% of the recorded value whatever
+ * its magnitude, from nanoseconds to hours, in a fixed 488 buckets.<br>
+ * -Each bucket is a LongAdder. Recording is one striped add with no lock and no allocation, so threads recording at the same
+ * time do not contend on one counter.<br>
+ * -Reading takes a snapshot. Snapshots subtract, which gives the distribution of one interval out of two cumulative reads.<br>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value the duration to record, negative values count as 0
+     */
+    public void record(long value) {
+
+        counts[index(value)].increment();
+    }
+
+    /**
+     * @return the counts recorded so far. Recording may go on while the snapshot is taken, so it can be a little behind.
+     */
+    public Snapshot snapshot() {
+
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return new Snapshot(copy);
+    }
+
+    static int index(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return value < 0L ? 0 : (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value recorded into the bucket
+     */
+    static long upperBound(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long next = (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+        return next <= 0L ? Long.MAX_VALUE : next - 1;
+    }
+
+    /**
+     * Bucket counts at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+
+        private final long total;
+
+        Snapshot(long[] counts) {
+
+            this.counts = counts;
+            long sum = 0L;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long count() {
+
+            return total;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value at or below which the given percentage of the recorded values fall, 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+
+            if (total == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        /**
+         * @param earlier a snapshot of the same histogram taken before this one
+         * @return the values recorded between the two snapshots
+         */
+        public Snapshot minus(Snapshot earlier) {
+
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                diff[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(diff);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A resource acquired from a {@link LockProg}, released by {@link #close()}, so it fits a try-with-resources block.<br>
+ * Design Decisions<br>
+ * -Every resource carries a generation stamp, odd while it is leased and even once the lease is closed. Each lease is a handle
+ * holding the stamp it was handed, so get and close compare it with the resource's stamp in one volatile read and close ends
+ * the lease with one CAS.<br>
+ * -A handle is never reused. A reference kept after close stays stale however often the resource is leased again, so it can
+ * never read or release the resource of the next holder. The handle, two references and an int, is the only allocation of
+ * a lease, the stamp lives in the resource's node.<br>
+ *
+ * @param <R>
+ */
+public final class Lease<R> implements AutoCloseable {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<FreeList.Node> STAMP = AtomicIntegerFieldUpdater
+            .newUpdater(FreeList.Node.class, "leaseGeneration");
+
+    private final LockProg<R> pool;
+
+    private final FreeList.Node<R> node;
+
+    private final int generation;
+
+    private Lease(LockProg<R> pool, FreeList.Node<R> node, int generation) {
+
+        this.pool = pool;
+        this.node = node;
+        this.generation = generation;
+    }
+
+    /**
+     * Starts a new lease for the thread that just acquired the resource.
+     */
+    static <R> Lease<R> begin(LockProg<R> pool, FreeList.Node<R> node) {
+
+        int g = node.leaseGeneration;
+        // odd and different, even when the previous lease was never closed
+        g += 1 + (g & 1);
+        node.leaseGeneration = g;
+        return new Lease<R>(pool, node, g);
+    }
+
+    /**
+     * Ends the lease open on the resource, if any, when it is released directly.
+     */
+    static void end(FreeList.Node<?> node) {
+
+        int g = node.leaseGeneration;
+        if ((g & 1) != 0) {
+            STAMP.compareAndSet(node, g, g + 1);
+        }
+    }
+
+    /**
+     * @return the leased resource
+     * @throws IllegalStateException if the lease is closed
+     */
+    public R get() {
+
+        if (node.leaseGeneration != generation) {
+            throw new IllegalStateException("Lease closed");
+        }
+        return node.resource;
+    }
+
+    /**
+     * @return the stamp of this lease, different for every lease of the resource
+     */
+    public int generation() {
+
+        return generation;
+    }
+
+    /**
+     * @return <code>true</code> until the lease is closed
+     */
+    public boolean isOpen() {
+
+        return node.leaseGeneration == generation;
+    }
+
+    /**
+     * Releases the resource back to the pool. Closing a closed lease does nothing as long as the resource was not leased again,
+     * after that it fails and leaves the new lease alone.
+     *
+     * @throws IllegalStateException if the pool is closed, or if the resource has been leased again since this lease closed
+     */
+    @Override
+    public void close() {
+
+        if (STAMP.compareAndSet(node, generation, generation + 1)) {
+            pool.release(node.resource);
+        } else if (node.leaseGeneration != generation + 1) {
+            throw new IllegalStateException("Lease closed");
+        }
+    }
+}
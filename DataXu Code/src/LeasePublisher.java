@@ -0,0 +1,163 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The {@link Flow.Publisher} view of a {@link LockProg}, see {@link LockProg#asPublisher()}. Every subscriber is sent
+ * resources as fast as they free up and as many as it requested. The subscriber owns each resource it is sent and releases it
+ * to the pool.<br>
+ * Design Decisions<br>
+ * -Demand is an AtomicLong. Each subscription has at most one acquireAsync outstanding, queued in the pool like any other
+ * waiter, so pending demand costs no thread and no extra queue entries however large it is.<br>
+ * -Whoever takes the demand from zero starts the acquire loop, whoever delivers the last requested resource stops it, so the
+ * loop is never run twice and onNext calls never overlap.<br>
+ * -Futures that are already complete are delivered in a loop instead of from their callbacks, so a large demand on a pool
+ * with many free resources does not recurse.<br>
+ *
+ * @param <R>
+ */
+class LeasePublisher<R> implements Flow.Publisher<R> {
+    private final LockProg<R> pool;
+
+    LeasePublisher(LockProg<R> pool) {
+
+        this.pool = pool;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        subscriber.onSubscribe(new Demand(subscriber));
+    }
+
+    /**
+     * One subscriber's subscription.
+     */
+    private final class Demand implements Flow.Subscription, BiConsumer<R, Throwable> {
+        private final Flow.Subscriber<? super R> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private volatile boolean done;
+
+        /**
+         * The outstanding acquire, <code>null</code> while none is.
+         */
+        private volatile CompletableFuture<R> pending;
+
+        Demand(Flow.Subscriber<? super R> subscriber) {
+
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (done) {
+                return;
+            }
+            if (n <= 0L) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive"));
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0L ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            if (current == 0L) {
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+
+            done = true;
+            CompletableFuture<R> future = pending;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Completion of an acquire that was still waiting when issued.
+         */
+        @Override
+        public void accept(R resource, Throwable failure) {
+
+            pending = null;
+            if (deliver(resource, failure)) {
+                drain();
+            }
+        }
+
+        /**
+         * Acquires and delivers until the demand is met or an acquire has to wait.
+         */
+        private void drain() {
+
+            while (true) {
+                CompletableFuture<R> future;
+                try {
+                    future = pool.acquireAsync();
+                } catch (IllegalStateException e) {
+                    deliver(null, e);
+                    return;
+                }
+                if (!future.isDone()) {
+                    pending = future;
+                    if (done) {
+                        future.cancel(false);
+                    }
+                    future.whenComplete(this);
+                    return;
+                }
+                R resource = null;
+                Throwable failure = null;
+                try {
+                    resource = future.join();
+                } catch (CompletionException e) {
+                    failure = e.getCause();
+                }
+                if (!deliver(resource, failure)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends a resource or a failure to the subscriber.
+         *
+         * @return <code>true</code> if more was requested and the next acquire is due
+         */
+        private boolean deliver(R resource, Throwable failure) {
+
+            if (done) {
+                if (resource != null) {
+                    // cancelled while the acquire was on its way
+                    try {
+                        pool.release(resource);
+                    } catch (IllegalStateException e) {
+                        // closed in the meantime, nothing to give back to
+                    }
+                }
+                return false;
+            }
+            if (failure != null) {
+                done = true;
+                subscriber.onError(failure);
+                return false;
+            }
+            subscriber.onNext(resource);
+            return demand.decrementAndGet() > 0L && !done;
+        }
+    }
+}
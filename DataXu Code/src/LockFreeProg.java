@@ -0,0 +1,507 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Same contract as {@link LockProg} without the single lock on the acquire and release path.<br>
+ * Design Decisions<br>
+ * -Every resource has an entry with an atomic state (free, in use, removed). Acquire and release are a compare-and-set on
+ * that state, so two threads can never hold the same resource and no lock is needed to decide who wins.<br>
+ * -Free entries sit in a non-blocking queue. An entry that was removed while queued is left in place and dropped when it
+ * reaches the head, which keeps remove constant time. Once the removals since the last sweep outnumber the members, the queue
+ * is swept for them, so remove and add churn without acquires cannot grow it past twice the membership.<br>
+ * -Each thread keeps a small cache of the entries it released last and checks it before the shared queue, so a thread that
+ * acquires and releases in a loop keeps getting the resource that is already warm in its cache. The cached entries stay in the
+ * shared queue as well, which is how other threads steal them, and a thread that dies or stops using the pool strands
+ * nothing. The cache is created on the first release only, so short lived threads that never release pay nothing. Every close
+ * replaces the thread local, so entries cached before it are never seen again and are dropped with the old thread local
+ * instead of staying reachable from long lived threads.<br>
+ * -The lock is only used by threads that have to wait: acquirers when the pool is empty, remove and close when a resource is
+ * in use. Releasers only touch the lock when the waiter counters say somebody is parked.<br>
+ * -close sweeps every free entry into a closing state once nothing is in use. If an acquire slipped in between, the sweep is
+ * rolled back and close waits again.<br>
+ *
+ * @param <R>
+ */
+public class LockFreeProg<R> implements Pool<R> {
+    private static final int FREE = 0;
+
+    private static final int IN_USE = 1;
+
+    private static final int CLOSING = 2;
+
+    private static final int REMOVED = -1;
+
+    private static final int LOCAL_CACHE_SIZE = 8;
+
+    private volatile boolean isOpen = false;
+
+    private final ConcurrentHashMap<R, Entry<R>> entries = new ConcurrentHashMap<R, Entry<R>>();
+
+    private final ConcurrentLinkedQueue<Entry<R>> freeQueue = new ConcurrentLinkedQueue<Entry<R>>();
+
+    /**
+     * The thread caches, replaced on every close.
+     */
+    private volatile ThreadLocal<ArrayDeque<Entry<R>>> localCache = new ThreadLocal<ArrayDeque<Entry<R>>>();
+
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    /**
+     * Entries removed while free since the free queue was last swept. Some may have left the queue already, which only brings
+     * the next sweep forward.
+     */
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    private final AtomicInteger acquireWaiters = new AtomicInteger();
+
+    private final AtomicInteger releaseWaiters = new AtomicInteger();
+
+    private final ReentrantLock parkLock = new ReentrantLock();
+
+    private final Condition freeQueueNotEmpty = parkLock.newCondition();
+
+    private final Condition change = parkLock.newCondition();
+
+    static final class Entry<R> {
+        final R resource;
+
+        final AtomicInteger state = new AtomicInteger(FREE);
+
+        /**
+         * <code>true</code> while the entry has a node in the free queue. Lets an entry taken from a thread local cache keep its
+         * queue node instead of being queued a second time on release.
+         */
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        Entry(R resource) {
+
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * Opens the pool. No resource are allowed to be acquired unless the poll is open.
+     */
+    @Override
+    public void open() {
+
+        parkLock.lock();
+        try {
+            if (isOpen) {
+                throw new IllegalStateException("Already open");
+            }
+            entries.clear();
+            freeQueue.clear();
+            inUse.set(0);
+            isOpen = true;
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    @Override
+    public boolean isOpen() {
+
+        return isOpen;
+    }
+
+    /**
+     * This blocks until all acquired resources are released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public void close() throws InterruptedException {
+
+        parkLock.lock();
+        releaseWaiters.incrementAndGet();
+        try {
+            checkOpen();
+            while (true) {
+                while (inUse.get() > 0) {
+                    change.await();
+                    checkOpen();
+                }
+                if (sweep()) {
+                    break;
+                }
+            }
+            shutdown();
+        } finally {
+            releaseWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * This closes the pool immediately without waiting for all acquired resources to be released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public void closeNow() throws InterruptedException {
+
+        parkLock.lock();
+        try {
+            checkOpen();
+            for (Entry<R> entry : entries.values()) {
+                entry.state.set(REMOVED);
+            }
+            shutdown();
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a resource is available.
+     *
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public R acquire() throws InterruptedException {
+
+        checkOpen();
+        R resource = pollLocal();
+        if (resource == null) {
+            resource = poll();
+        }
+        if (resource != null) {
+            return resource;
+        }
+        return await(false, 0L);
+    }
+
+    /**
+     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval, null is
+     * returned.
+     *
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public R acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        checkOpen();
+        R resource = pollLocal();
+        if (resource == null) {
+            resource = poll();
+        }
+        if (resource != null) {
+            return resource;
+        }
+        return await(true, timeUnit.toNanos(timeout));
+    }
+
+    /**
+     * Release the resource back to the pool.
+     *
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    @Override
+    public void release(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        checkOpen();
+        Entry<R> entry = entries.get(resource);
+        if (entry == null) {
+            throw new IllegalStateException("No such resource in the pool");
+        }
+        if (!entry.state.compareAndSet(IN_USE, FREE)) {
+            return;
+        }
+        ThreadLocal<ArrayDeque<Entry<R>>> local = localCache;
+        ArrayDeque<Entry<R>> cache = local.get();
+        if (cache == null) {
+            cache = new ArrayDeque<Entry<R>>(LOCAL_CACHE_SIZE);
+            local.set(cache);
+        } else if (cache.size() == LOCAL_CACHE_SIZE) {
+            cache.pollFirst();
+        }
+        cache.addLast(entry);
+        enqueue(entry);
+        inUse.decrementAndGet();
+        signalWaiters();
+    }
+
+    /**
+     * Add the resource to the pool.
+     *
+     * @param resource the resource to be added to the pool
+     * @return <code>true</code> if the resource was added to the pool <code>false</code> if the resource is already in the pool
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean add(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        checkOpen();
+        Entry<R> entry = new Entry<R>(resource);
+        if (entries.putIfAbsent(resource, entry) != null) {
+            return false;
+        }
+        enqueue(entry);
+        signalWaiters();
+        return true;
+    }
+
+    /**
+     * Remove the resource from the pool. This method blocks if the resource that is being removed is currently in use, until that
+     * resource has been released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean remove(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        checkOpen();
+        Entry<R> entry = entries.get(resource);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.state.compareAndSet(FREE, REMOVED)) {
+            entries.remove(resource, entry);
+            buried();
+            return true;
+        }
+        parkLock.lock();
+        releaseWaiters.incrementAndGet();
+        try {
+            while (true) {
+                if (entry.state.compareAndSet(FREE, REMOVED)) {
+                    entries.remove(resource, entry);
+                    buried();
+                    return true;
+                }
+                if (entry.state.get() == REMOVED) {
+                    return false;
+                }
+                change.await();
+                checkOpen();
+            }
+        } finally {
+            releaseWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the resource from the pool immediately without waiting for it to be released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean removeNow(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        checkOpen();
+        Entry<R> entry = entries.remove(resource);
+        if (entry == null) {
+            return false;
+        }
+        int previous = entry.state.getAndSet(REMOVED);
+        if (previous == IN_USE) {
+            inUse.decrementAndGet();
+        } else if (previous == FREE) {
+            buried();
+        }
+        signalWaiters();
+        return true;
+    }
+
+    /**
+     * Takes the most recently released entry from the calling thread's cache. Entries that were stolen or removed since are
+     * dropped.
+     */
+    private R pollLocal() {
+
+        ArrayDeque<Entry<R>> cache = localCache.get();
+        if (cache == null) {
+            return null;
+        }
+        Entry<R> entry;
+        while ((entry = cache.pollLast()) != null) {
+            if (entry.state.compareAndSet(FREE, IN_USE)) {
+                inUse.incrementAndGet();
+                return entry.resource;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the first free entry off the queue, dropping entries that were acquired, removed or swept in the meantime.
+     * <code>queued</code> is cleared before the state is tried: a release that races with this either sees the flag cleared and
+     * queues the entry again, or set its state to free early enough for this thread to take it.
+     */
+    private R poll() {
+
+        Entry<R> entry;
+        while ((entry = freeQueue.poll()) != null) {
+            entry.queued.set(false);
+            if (entry.state.compareAndSet(FREE, IN_USE)) {
+                inUse.incrementAndGet();
+                return entry.resource;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Slow path of acquire, only taken when the free queue was empty. The waiter is counted before the queue is checked again
+     * under the lock, so a release either sees the waiter and signals, or the waiter sees the released entry.
+     */
+    private R await(boolean timed, long nanos) throws InterruptedException {
+
+        acquireWaiters.incrementAndGet();
+        parkLock.lock();
+        try {
+            while (true) {
+                checkOpen();
+                R resource = poll();
+                if (resource != null) {
+                    return resource;
+                }
+                if (!timed) {
+                    freeQueueNotEmpty.await();
+                } else if (nanos <= 0L) {
+                    return null;
+                } else {
+                    nanos = freeQueueNotEmpty.awaitNanos(nanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the signal may have been meant for this thread, pass it on
+            freeQueueNotEmpty.signal();
+            throw e;
+        } finally {
+            acquireWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    private void enqueue(Entry<R> entry) {
+
+        if (entry.queued.compareAndSet(false, true)) {
+            freeQueue.offer(entry);
+        }
+    }
+
+    /**
+     * Counts an entry removed while free, which leaves its node in the free queue, and sweeps the queue once such nodes
+     * outnumber the members. A sweep costs the queue length and comes at most once per that many removals, so remove stays
+     * constant time amortized.
+     */
+    private void buried() {
+
+        if (tombstones.incrementAndGet() <= entries.size()) {
+            return;
+        }
+        tombstones.set(0);
+        Iterator<Entry<R>> it = freeQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().state.get() == REMOVED) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes in the free queue, removed entries not yet dropped included
+     */
+    int queueLength() {
+
+        return freeQueue.size();
+    }
+
+    private void signalWaiters() {
+
+        if (acquireWaiters.get() == 0 && releaseWaiters.get() == 0) {
+            return;
+        }
+        parkLock.lock();
+        try {
+            freeQueueNotEmpty.signal();
+            change.signalAll();
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Moves every free entry into the closing state. Returns <code>false</code>, after putting the swept entries back, if an
+     * entry was acquired after close saw nothing in use.
+     */
+    private boolean sweep() {
+
+        List<Entry<R>> swept = new ArrayList<Entry<R>>();
+        for (Entry<R> entry : entries.values()) {
+            if (entry.state.compareAndSet(FREE, CLOSING)) {
+                swept.add(entry);
+            } else if (entry.state.get() == IN_USE) {
+                for (Entry<R> closing : swept) {
+                    closing.state.set(FREE);
+                    enqueue(closing);
+                }
+                freeQueueNotEmpty.signalAll();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void shutdown() {
+
+        isOpen = false;
+        localCache.remove();
+        localCache = new ThreadLocal<ArrayDeque<Entry<R>>>();
+        entries.clear();
+        freeQueue.clear();
+        inUse.set(0);
+        tombstones.set(0);
+        freeQueueNotEmpty.signalAll();
+        change.signalAll();
+    }
+
+    private void checkOpen() {
+
+        if (!isOpen) {
+            throw new IllegalStateException("Not open");
+        }
+    }
+}
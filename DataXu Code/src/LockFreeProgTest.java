@@ -0,0 +1,351 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LockFreeProg}.
+ */
+public class LockFreeProgTest {
+
+    private LockFreeProg<Integer> pool;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        pool = new LockFreeProg<Integer>();
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+
+        pool = null;
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#open()}.
+     */
+    @Test
+    public void testOpen() {
+
+        pool.open();
+        Assert.assertTrue(pool.isOpen());
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#close()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testCloseException() throws InterruptedException {
+
+        pool.close();
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#acquire()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireInOrder() throws InterruptedException {
+
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        Assert.assertTrue(pool.add(6));
+        Assert.assertFalse(pool.add(6));
+        Assert.assertEquals(Integer.valueOf(5), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(6), pool.acquire());
+        Assert.assertNull(pool.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#acquire()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertEquals(value, pool.acquire(1000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A thread gets back the resource it released last before anything from the shared queue.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireFromLocalCache() throws InterruptedException {
+
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        Assert.assertTrue(pool.add(6));
+        Assert.assertTrue(pool.add(7));
+        Assert.assertEquals(Integer.valueOf(5), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(6), pool.acquire());
+        pool.release(6);
+        pool.release(5);
+        Assert.assertEquals(Integer.valueOf(5), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(6), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(7), pool.acquire());
+    }
+
+    /**
+     * Resources cached by a thread that is gone are still handed to other threads.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testStealFromLocalCache() throws InterruptedException {
+
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        Assert.assertTrue(pool.add(6));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Integer first = pool.acquire();
+                    Integer second = pool.acquire();
+                    pool.release(first);
+                    pool.release(second);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        t.join();
+        Assert.assertNotNull(pool.acquire(1000, TimeUnit.MILLISECONDS));
+        Assert.assertNotNull(pool.acquire(1000, TimeUnit.MILLISECONDS));
+        Assert.assertNull(pool.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#release(Object)}.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseUnknown() {
+
+        pool.open();
+        pool.release(5);
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#remove(Object)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(pool.remove(value));
+        Assert.assertFalse(pool.remove(value));
+        Assert.assertNull(pool.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#removeNow(Object)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveNowWakesRemove() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.removeNow(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertFalse(pool.remove(value));
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#close()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCloseWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertTrue(pool.add(6));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        pool.close();
+        Assert.assertFalse(pool.isOpen());
+    }
+
+    /**
+     * Test method for {@link LockFreeProg#closeNow()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testCloseNowWakesAcquire() throws InterruptedException {
+
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        pool.acquire();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.closeNow();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        pool.acquire();
+    }
+
+    /**
+     * Many threads acquiring and releasing a small pool must never hold the same resource at the same time.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testConcurrentAcquireRelease() throws InterruptedException {
+
+        pool.open();
+        final int size = 4;
+        final AtomicBoolean[] held = new AtomicBoolean[size];
+        for (int i = 0; i < size; i++) {
+            held[i] = new AtomicBoolean();
+            Assert.assertTrue(pool.add(i));
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            Integer resource = pool.acquire();
+                            if (!held[resource].compareAndSet(false, true)) {
+                                errors.incrementAndGet();
+                            }
+                            held[resource].set(false);
+                            pool.release(resource);
+                        }
+                    } catch (InterruptedException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, errors.get());
+        pool.close();
+    }
+
+    /**
+     * Removing and adding resources without acquiring any keeps the free queue bounded by the membership.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveAddChurn() throws InterruptedException {
+
+        pool.open();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(pool.add(i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            Integer resource = i % 100;
+            if (i % 2 == 0) {
+                Assert.assertTrue(pool.remove(resource));
+            } else {
+                Assert.assertTrue(pool.removeNow(resource));
+            }
+            Assert.assertTrue(pool.add(resource));
+        }
+        Assert.assertTrue(pool.queueLength() <= 2 * 100 + 1);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+    }
+}
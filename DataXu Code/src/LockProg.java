@@ -1,7 +1,28 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -11,358 +32,2721 @@ import java.util.concurrent.locks.ReentrantLock;
  *         -Used a queue to keep track of freed resources and to select the next available resource in constant time.<br>
  *         -Used a Hash to keep track of all the resource and another Hash to keep track of acquired resources. Leveraged in the
  *         release operation runs in constant time. Note that his can be improved on.<br>
+ *         -Which free resource is taken next is a SelectionPolicy. FIFO keeps every resource in use, LIFO keeps a few hot
+ *         ones and lets the rest idle out, least used spreads wear. Each one takes and puts back in constant time.<br>
+ *         -acquireAll grants n resources at once or none. A waiting batch holds nothing, it is granted whole once free and
+ *         creatable resources cover it, so batches never deadlock holding part of what another needs and single acquirers
+ *         queued behind a batch are served while it waits, for up to the aging step. After that they queue behind it, so a
+ *         steady stream of single acquires cannot starve a batch. releaseAll puts a batch back in one lock round-trip.<br>
+ *         -open(PoolSpec) creates the initial resources in parallel on an executor and publishes each one as it completes, so
+ *         the first acquirers are served before the warm-up ends.<br>
+ *         -snapshot saves the members through a ResourceCodec to a file written with NIO channels, and open(Path, codec)
+ *         restores them by decoding first and linking every member in one pass under the lock, instead of one add each.<br>
+ *         -asPublisher streams resources to Flow subscribers through acquireAsync. Demand is a counter per subscription with
+ *         at most one acquire outstanding, so pending requests cost no thread.<br>
+ *         -Admission control bounds the waiter queue and can reject a timed acquire at once when the queue ahead of it,
+ *         times the moving average gap between releases to waiters, already exceeds its timeout. Overload then fails
+ *         fast instead of piling up acquires that each wait out their whole timeout. The first waiter is always let in and
+ *         the average resets once the pool has a free resource, so the estimate keeps being measured.<br>
+ *         -maxTotal can change while the pool is open, which lets a PoolSizeController resize a factory-backed pool from its
+ *         acquire wait times. Lowering it drains the excess through the usual eviction and release paths.<br>
+ *         -acquireLease hands out a Lease stamped with the resource's generation, the only allocation of the acquire. A lease
+ *         kept after close is stale for good, so it can never read or release the resource of its next holder.<br>
+ *         -The free queue is an intrusive list and the Hash of all resources maps each resource to its node in it, so remove,
+ *         removeNow and the free check unlink or test the node directly instead of scanning the queue.<br>
  *         -Used Conditions for thread communications. Has a number of advantages; conditions are bound to the lock, waiting
  *         condition releases the lock suspends the current thread, supports waiting with timout.<br>
  *         -Used ReentrantLock. This has a lot of performance advantages over other methods of synchronization.<br>
- *         -Most functions run in constant time besides remove it runs in<br>
+ *         -Used a priority queue of waiters, each with its own condition. A released or added resource is handed straight to the
+ *         waiter at its head and only that thread is woken, so one release never wakes every blocked acquirer. Waiters of equal
+ *         priority are served in arrival order, a higher priority moves a waiter ahead by one aging step per level.<br>
+ *         -The wait strategy can spin before or instead of parking. The spin runs with the lock released and watches a volatile
+ *         flag set by the hand-off. The spin budget follows a moving average of recent hold times, so spinning stops paying as
+ *         soon as resources are held for longer than a context switch costs.<br>
+ *         -acquireAsync queues a future instead of a thread. Futures are completed after the lock is released, so callbacks
+ *         chained on them never run under the pool lock.<br>
+ *         -With a ResourceFactory the pool grows on demand up to maxTotal and keeps minIdle resources from open. A creation is
+ *         reserved under the lock but runs with the lock released, so a slow create never blocks other acquirers. Creations
+ *         nobody blocks on run on a creation executor, the common pool unless set, so a factory doing I/O can be kept off it.<br>
+ *         -Idle timeout and max lifetime are enforced by a reaper on a shared daemon thread. Each free resource has one timeout
+ *         in a hashed timer wheel, so a reaper tick only touches the resources that expire instead of scanning the free
+ *         queue. Resources past their lifetime while acquired are dropped when released. The reaper only evicts, destroying
+ *         and topping up to minIdle run on the creation executor, so one pool's slow factory cannot stall the others.<br>
+ *         -An optional ResourceValidator checks resources outside the lock. On return it runs on an executor and the resource
+ *         stays acquired until it passes, so close and remove still wait for it. On borrow it is skipped for resources
+ *         validated within the window, so a busy pool rarely pays for it.<br>
+ *         -Leak detection samples one acquire in N. Only sampled acquires capture their stack and get a leak check in the timer
+ *         wheel, so with sampling off acquire pays one volatile read.<br>
+ *         -Tracing goes through an optional PoolEventListener. Without one every event is a single null check, nothing is
+ *         formatted or allocated.<br>
+ *         -With no one waiting, add, remove and a single acquire or release run in constant time. Once acquirers wait, queueing
+ *         one, handing a release to one and dropping one that gave up cost O(log w) in the w waiters, with no allocation.
+ *         Batches are queued apart from single waiters, so the single waiter behind batches that cannot be granted yet is
+ *         found with a peek. acquireAll and releaseAll are linear in the batch. close, snapshot and opening from a snapshot
+ *         are linear in the pool, setMaxTotal in the resources it drops.<br>
  *         Things that can be improved<br>
  *         -Tighter locks. Maybe incorporating one writer / many readers pattern.<br>
  *         -Reduce the number of collections used. Probably can get away with one collection.<br>
- *         -Tighter signals. The change condition object used for signals can be reduced in scope.<br>
- *         -Performance on remove and removeNow can be improved from O(n) to O(ln n).<br>
  * @param <R>
  */
-public class LockProg<R> {
+public class LockProg<R> implements Pool<R> {
     private boolean isOpen = false;
 
-    private Map<R, Object> locks;
+    private Map<R, FreeList.Node<R>> locks;
 
-    private BlockingDeque<R> freeQueue;
+    private FreeList<R> freeQueue;
 
-    private Map<R, Object> acquiredMap;
+    private Map<R, FreeList.Node<R>> acquiredMap;
+
+    private final WaiterQueue<R> waiters = new WaiterQueue<R>();
+
+    /**
+     * Asynchronous waiters handed a resource, or woken by close, while the lock was held. Chained through their next link and
+     * completed by unlock.
+     */
+    private WaiterQueue.Waiter<R> completions;
+
+    /**
+     * Resources that a remove call is waiting on, mapped to <code>true</code> once the release has taken them out of the pool.
+     */
+    private final Map<R, Boolean> pendingRemoval = new HashMap<R, Boolean>();
 
     private final ReentrantLock mainLock = new ReentrantLock();
 
-    private Condition acquiredMapEmpty = mainLock.newCondition();
+    private final Condition acquiredMapEmpty = mainLock.newCondition();
+
+    private final Condition change = mainLock.newCondition();
 
-    private Condition freeQueueNotEmpty = mainLock.newCondition();
+    private PoolEventListener<? super R> listener;
 
-    private Condition change = mainLock.newCondition();
+    private final ResourceFactory<R> factory;
+
+    private final int minIdle;
 
     /**
-     * Opens the pool. No resource are allowed to be acquired unless the poll is open.
+     * Guarded by the main lock, volatile for the argument check of acquireAll.
      */
-    public void open() {
+    private volatile int maxTotal;
 
-        System.out.println("Open, with thread: " + Thread.currentThread().getName());
-        mainLock.lock();
-        try {
-            if (isOpen) {
-                throw new IllegalStateException("Already open");
+    /**
+     * Runs the creations started for asynchronous acquires and the warm-ups without an executor of their own.
+     */
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * Creations reserved under the lock and still running. They count towards maxTotal.
+     */
+    private int creating;
+
+    private long idleTimeoutNanos;
+
+    private long maxLifetimeNanos;
+
+    /**
+     * Expiry of the free resources, <code>null</code> unless an idle timeout or a max lifetime is set.
+     */
+    private TimerWheel<FreeList.Node<R>> wheel;
+
+    private ScheduledFuture<?> reaper;
+
+    /**
+     * <code>true</code> while a top-up handed off by the reaper runs, so a slow factory does not get one queued per tick.
+     */
+    private boolean toppingUp;
+
+    private volatile ResourceValidator<? super R> validator;
+
+    /**
+     * Runs the validation of released resources, <code>null</code> to put them back without validating.
+     */
+    private volatile Executor returnValidator;
+
+    /**
+     * Borrow skips validation of resources validated more recently than this, <code>-1</code> to never validate on borrow.
+     */
+    private volatile long borrowWindowNanos = -1L;
+
+    private long leakThresholdNanos;
+
+    /**
+     * One acquire in this many is watched for leaks, <code>0</code> for none. Set by setLeakDetection, in effect from the next
+     * open.
+     */
+    private int leakSampling;
+
+    /**
+     * The leak sampling in effect, set with the timer wheel when the pool opens and cleared when the wheel goes, so a sampled
+     * acquire always has a wheel to be watched in.
+     */
+    private volatile int activeLeakSampling;
+
+    private long activeLeakThresholdNanos;
+
+    private long agingNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The longest SPIN_THEN_PARK spins before parking.
+     */
+    private static final long MAX_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    private SelectionPolicy selectionPolicy = SelectionPolicy.FIFO;
+
+    private int maxWaiters = Integer.MAX_VALUE;
+
+    private boolean deadlineAdmission;
+
+    /**
+     * Moving average of the time between resources freeing up while acquirers wait, in nanoseconds, 0 until two were seen.
+     * Forgotten when a resource frees up with nobody waiting.
+     */
+    private long handOffNanosAverage;
+
+    /**
+     * When a resource last freed up with acquirers waiting, 0 after one freed up with nobody waiting.
+     */
+    private long lastHandOff;
+
+    private static final int SNAPSHOT_MAGIC = 0x4C505331;
+
+    private static final int SNAPSHOT_BUFFER = 64 * 1024;
+
+    /**
+     * Moving average of how long resources are held, in nanoseconds. Only kept for SPIN_THEN_PARK.
+     */
+    private long holdNanosAverage;
+
+    /**
+     * Daemon thread shared by the reapers of every pool.
+     */
+    private static final class Reaper {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread thread = new Thread(r, "LockProg-reaper");
+                thread.setDaemon(true);
+                return thread;
             }
-            isOpen = true;
-            locks = new HashMap<R, Object>();
-            acquiredMap = new HashMap<R, Object>();
-            freeQueue = new LinkedBlockingDeque<R>();
-        } finally {
-            mainLock.unlock();
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
         }
     }
 
     /**
-     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     * Creates a pool that only holds the resources given to {@link #add(Object)}.
      */
-    public boolean isOpen() {
+    public LockProg() {
 
-        return isOpen;
+        this.factory = null;
+        this.minIdle = 0;
+        this.maxTotal = Integer.MAX_VALUE;
     }
 
     /**
-     * This blocks until all acquired resources are released.
+     * Creates a factory-backed pool. Acquire creates a resource when none is free and the pool holds fewer than
+     * <code>maxTotal</code>, and open creates <code>minIdle</code> resources up front. Resources can still be added.
+     *
+     * @param factory creates the resources
+     * @param minIdle the number of free resources created when the pool opens
+     * @param maxTotal the most resources acquire grows the pool to
+     */
+    public LockProg(ResourceFactory<R> factory, int minIdle, int maxTotal) {
+
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        if (maxTotal <= 0 || minIdle < 0 || minIdle > maxTotal) {
+            throw new IllegalArgumentException("Need 0 <= minIdle <= maxTotal and maxTotal > 0");
+        }
+        this.factory = factory;
+        this.minIdle = minIdle;
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Opens the pool. No resource are allowed to be acquired unless the poll is open. A factory-backed pool creates its minIdle
+     * resources before returning.
      * 
-     * @throws InterruptedException if the current thread is interrupted
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails while creating the minIdle resources, the pool stays open
      */
-    public void close() throws InterruptedException {
+    public void open() {
 
-        System.out.println("Close, with thread: " + Thread.currentThread().getName());
         mainLock.lock();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-
-            while (!acquiredMap.isEmpty()) {
-                acquiredMapEmpty.await();
-                if (!isOpen) {
-                    throw new IllegalStateException("Not open");
-                }
-            }
-            isOpen = false;
-            locks = null;
-            acquiredMap = null;
-            freeQueue = null;
-            change = null;
+            start();
         } finally {
-            mainLock.unlock();
-
+            unlock();
+        }
+        if (factory != null) {
+            ensureMinIdle();
         }
     }
 
     /**
-     * This closes the pool immediately without waiting for all acquired resources to be released.
+     * Opens the pool and creates its initial resources in parallel. Returns straight away, each resource is published as soon as
+     * it is created, so acquirers are served while the rest are still being created.
      * 
-     * @throws InterruptedException if the current thread is interrupted
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @param spec the warm-up
+     * @return a future completed once every initial resource is created, or failed with the first factory failure
+     * @throws IllegalStateException if the pool has no factory to create the initial resources with
      */
-    public void closeNow() throws InterruptedException {
+    public CompletableFuture<Void> open(PoolSpec spec) {
 
-        System.out.println("CloseNow, with thread: " + Thread.currentThread().getName());
+        if (factory == null && spec.getInitialSize() > 0) {
+            throw new IllegalStateException("No factory");
+        }
+        int count = 0;
         mainLock.lock();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
+            start();
+            if (factory != null) {
+                // reserved up front, so acquirers wait for the warm-up instead of creating past maxTotal
+                count = Math.max(0, Math.min(Math.max(spec.getInitialSize(), minIdle), maxTotal) - locks.size() - creating);
+                creating += count;
             }
-            isOpen = false;
-            locks = null;
-            acquiredMap = null;
-            freeQueue = null;
-            acquiredMapEmpty.signalAll();
-            freeQueueNotEmpty.signalAll();
-            change.signalAll();
         } finally {
-            mainLock.unlock();
+            unlock();
+        }
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        if (count == 0) {
+            done.complete(null);
+            return done;
+        }
+        final AtomicInteger tickets = new AtomicInteger(count);
+        final AtomicInteger pending = new AtomicInteger(count);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
 
+                prefill(tickets, pending, done);
+            }
+        };
+        Executor executor = spec.getExecutor() != null ? spec.getExecutor() : this.executor;
+        for (int i = Math.min(spec.getParallelism(), count); i > 0; i--) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
         }
+        return done;
     }
 
     /**
-     * Blocks until a resource is available.
+     * Opens the pool with the members saved by {@link #snapshot(Path, ResourceCodec)}, all of them free. The file is read and
+     * decoded before the pool is locked, then every member is linked in one pass under the lock. A factory-backed pool then
+     * tops up to minIdle.
      * 
-     * @return the resource acquired
-     * @throws InterruptedException if the current thread is interrupted
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @param file the snapshot, a missing file opens the pool empty
+     * @param codec rebuilds the resources from their descriptors
+     * @throws IOException if the file cannot be read or is not a snapshot
      */
-    public R acquire() throws InterruptedException {
-
-        System.out.println("Acquire, with thread: " + Thread.currentThread().getName());
+    public void open(Path file, ResourceCodec<? extends R> codec) throws IOException {
 
+        ArrayList<R> members = new ArrayList<R>();
+        try {
+            readSnapshot(file, codec, members);
+        } catch (NoSuchFileException e) {
+            // first start, nothing saved yet
+        }
         mainLock.lock();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-            while (freeQueue.isEmpty()) {
-                freeQueueNotEmpty.await();
-                if (!isOpen) {
-                    throw new IllegalStateException("Not open");
+            start(members.size());
+            long now = System.nanoTime();
+            for (R resource : members) {
+                if (resource == null || locks.containsKey(resource)) {
+                    continue;
+                }
+                FreeList.Node<R> node = new FreeList.Node<R>(resource);
+                node.createdAt = now;
+                node.lastValidated = now;
+                locks.put(resource, node);
+                freeQueue.add(node);
+                arm(node);
+                if (listener != null) {
+                    listener.added(resource);
                 }
             }
-            R resource = freeQueue.take();
-            Object lock = locks.get(resource);
-            acquiredMap.put(resource, lock);
-            change.signalAll();
-            return resource;
         } finally {
-            mainLock.unlock();
+            unlock();
+        }
+        if (factory != null) {
+            ensureMinIdle();
         }
     }
 
     /**
-     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval specified in
-     * the acquire(long, TimeUnit) method, null is returned.
+     * Saves the members of the pool, free or acquired, to a file {@link #open(Path, ResourceCodec)} restores them from. The
+     * lock is only held to copy the members, they are encoded and written after. The file is written next to the target and
+     * moved over it, so a crash never leaves half a snapshot.
      * 
-     * @param timeout the maximum time to wait
-     * @param timeUnit the time unit of the {@code timeout} argument
-     * @return the resource acquired or null if the resource was not acquired within the timeout interval
-     * @throws InterruptedException if the current thread is interrupted
+     * @param file the snapshot, replaced if it exists
+     * @param codec writes the resources as descriptors
+     * @return the number of resources saved
+     * @throws IOException if the file cannot be written
      * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
      */
-    public R acquire(long timeout, java.util.concurrent.TimeUnit timeUnit) throws InterruptedException {
+    public int snapshot(Path file, ResourceCodec<? super R> codec) throws IOException {
 
-        System.out.println("Acquire Timed, with thread: " + Thread.currentThread().getName());
+        List<R> members;
         mainLock.lock();
         try {
             if (!isOpen) {
                 throw new IllegalStateException("Not open");
             }
-            while (freeQueue.isEmpty()) {
-                // timeout, return null
-                if (!freeQueueNotEmpty.await(timeout, timeUnit)) {
-                    return null;
+            members = new ArrayList<R>(locks.keySet());
+        } finally {
+            unlock();
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(members.size());
+            for (R resource : members) {
+                byte[] bytes = codec.encode(resource);
+                if (buffer.remaining() < 4 + bytes.length) {
+                    drain(channel, buffer);
                 }
-                if (!isOpen) {
-                    throw new IllegalStateException("Not open");
+                if (buffer.remaining() < 4 + bytes.length) {
+                    // larger than the buffer, written on its own
+                    buffer.putInt(bytes.length);
+                    drain(channel, buffer);
+                    ByteBuffer large = ByteBuffer.wrap(bytes);
+                    while (large.hasRemaining()) {
+                        channel.write(large);
+                    }
+                } else {
+                    buffer.putInt(bytes.length).put(bytes);
                 }
             }
-            R resource = freeQueue.take();
-            Object lock = locks.get(resource);
-            acquiredMap.put(resource, lock);
-            change.signalAll();
-            return resource;
+            drain(channel, buffer);
+            channel.force(false);
         } finally {
-            mainLock.unlock();
+            channel.close();
         }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return members.size();
     }
 
     /**
-     * Release the resource back to the pool.
-     * 
-     * @param resource the resource released
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     * Writes what the buffer holds and clears it.
      */
-    public void release(R resource) {
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
 
-        System.out.println("Release, resource: " + resource + " with thread: " + Thread.currentThread().getName());
-        if (resource == null) {
-            throw new NullPointerException();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
-        mainLock.lock();
+        buffer.clear();
+    }
+
+    /**
+     * Decodes every resource of a snapshot into members.
+     */
+    private static <R> void readSnapshot(Path file, ResourceCodec<? extends R> codec, ArrayList<R> members) throws IOException {
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-            Object lock = locks.get(resource);
-            if (lock == null) {
-                throw new IllegalStateException("No such resource in the pool");
-            }
-            lock = acquiredMap.remove(resource);
-            if (lock == null) {
-                return;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER);
+            buffer.flip();
+            if (!fill(channel, buffer, 8) || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a pool snapshot: " + file);
             }
-            freeQueue.add(resource);
-            change.signalAll();
-            if (acquiredMap.isEmpty()) {
-                acquiredMapEmpty.signalAll();
-            }
-            if (!freeQueue.isEmpty()) {
-                freeQueueNotEmpty.signalAll();
+            int count = buffer.getInt();
+            members.ensureCapacity(Math.min(count, SNAPSHOT_BUFFER));
+            for (int i = 0; i < count; i++) {
+                if (!fill(channel, buffer, 4)) {
+                    throw new IOException("Truncated pool snapshot: " + file);
+                }
+                int length = buffer.getInt();
+                if (length < 0) {
+                    throw new IOException("Corrupt pool snapshot: " + file);
+                }
+                if (length > buffer.capacity()) {
+                    // larger than the buffer, read on its own
+                    ByteBuffer large = ByteBuffer.allocate(length);
+                    large.put(buffer);
+                    buffer.clear().flip();
+                    while (large.hasRemaining()) {
+                        if (channel.read(large) < 0) {
+                            throw new IOException("Truncated pool snapshot: " + file);
+                        }
+                    }
+                    large.flip();
+                    members.add(codec.decode(large));
+                    continue;
+                }
+                if (!fill(channel, buffer, length)) {
+                    throw new IOException("Truncated pool snapshot: " + file);
+                }
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + length);
+                members.add(codec.decode(buffer.slice()));
+                buffer.position(buffer.limit()).limit(limit);
             }
-
         } finally {
-            mainLock.unlock();
+            channel.close();
         }
     }
 
     /**
-     * Add the resource to the pool.
+     * Reads until the buffer, in read mode, has at least the wanted bytes remaining.
      * 
-     * @param resource the resource to be added to the pool
-     * @return <code>true</code> if the resource was added to the pool <code>false</code> if the resource is already in the pool
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @return <code>false</code> if the file ends first
      */
-    public boolean add(R resource) {
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int wanted) throws IOException {
 
-        System.out.println("Add, resource: " + resource + " with thread: " + Thread.currentThread().getName());
-        if (resource == null) {
-            throw new NullPointerException();
+        if (buffer.remaining() >= wanted) {
+            return true;
         }
-        mainLock.lock();
+        buffer.compact();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-            Object lock = locks.get(resource);
-            if (lock != null) {
-                return false;
-            }
-            locks.put(resource, new Object());
-            freeQueue.add(resource);
-            change.signalAll();
-            if (!freeQueue.isEmpty()) {
-                freeQueueNotEmpty.signalAll();
+            while (buffer.position() < wanted) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
             }
             return true;
         } finally {
-            mainLock.unlock();
+            buffer.flip();
         }
     }
 
     /**
-     * Remove the resource from the pool. This method blocks if the resource that is being removed is currently in use, until that
-     * resource has been released.
-     * 
-     * @param resource the resource to be removed from the pool
-     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
-     * @throws InterruptedException if the current thread is interrupted
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     * Opens the pool. Must be called with the main lock held.
      */
-    public boolean remove(R resource) throws InterruptedException {
+    private void start() {
 
-        System.out.println("Remove, resource: " + resource + " with thread: " + Thread.currentThread().getName());
-        if (resource == null) {
-            throw new NullPointerException();
+        start(0);
+    }
+
+    /**
+     * Opens the pool sized for the given number of members. Must be called with the main lock held.
+     */
+    private void start(int members) {
+
+        if (isOpen) {
+            throw new IllegalStateException("Already open");
+        }
+        isOpen = true;
+        locks = new HashMap<R, FreeList.Node<R>>(Math.max(16, (int) (members / 0.75f) + 1));
+        acquiredMap = new HashMap<R, FreeList.Node<R>>();
+        freeQueue = new FreeList<R>(selectionPolicy);
+        if (idleTimeoutNanos > 0L || maxLifetimeNanos > 0L || leakSampling > 0) {
+            startReaper();
         }
+        if (listener != null) {
+            listener.opened();
+        }
+    }
+
+    /**
+     * Registers the listener told about every pool event. With no listener, the default, events cost a null check.
+     * 
+     * @param listener the listener, or <code>null</code> to stop listening
+     */
+    public void setEventListener(PoolEventListener<? super R> listener) {
+
         mainLock.lock();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-            Object lock = locks.get(resource);
-            if (lock == null) {
-                return false;
-            }
-            if (freeQueue.remove(resource)) {
-                locks.remove(resource);
-                if (!freeQueue.isEmpty()) {
-                    freeQueueNotEmpty.signalAll();
-                }
-                return true;
-            }
-            while (!freeQueue.contains(resource)) {
-                change.await();
-                if (!isOpen) {
-                    throw new IllegalStateException("Not open");
-                }
-                lock = locks.get(resource);
-                if (lock == null) {
-                    return false;
-                }
-            }
-            if (freeQueue.remove(resource)) {
-                locks.remove(resource);
-                if (!freeQueue.isEmpty()) {
-                    freeQueueNotEmpty.signalAll();
-                }
-                return true;
-            }
-            return false;
+            this.listener = listener;
         } finally {
-            mainLock.unlock();
+            unlock();
         }
     }
 
     /**
-     * Remove the resource from the pool immediately without waiting for it to be released.
+     * Evicts resources left free for longer than the timeout. A factory-backed pool keeps minIdle free resources and destroys the
+     * ones it evicts. Takes effect the next time the pool opens.
      * 
-     * @param resource the resource to be removed from the pool
-     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
-     * @throws InterruptedException if the current thread is interrupted
-     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     * @param timeout how long a resource may stay free, 0 to keep free resources forever, the default
+     * @param timeUnit the time unit of the {@code timeout} argument
      */
-    public boolean removeNow(R resource) throws InterruptedException {
+    public void setIdleTimeout(long timeout, TimeUnit timeUnit) {
 
-        System.out.println("RemoveNow, resource: " + resource + " with thread: " + Thread.currentThread().getName());
-        if (resource == null) {
-            throw new NullPointerException();
+        if (timeout < 0L) {
+            throw new IllegalArgumentException("timeout must not be negative");
         }
         mainLock.lock();
         try {
-            if (!isOpen) {
-                throw new IllegalStateException("Not open");
-            }
-            if (freeQueue.remove(resource)) {
-                if (!freeQueue.isEmpty()) {
-                    freeQueueNotEmpty.signalAll();
-                }
-                return true;
-            }
-            Object lock = acquiredMap.remove(resource);
-            boolean removed = freeQueue.remove(resource);
-            locks.remove(resource);
-            change.signalAll();
-            if (acquiredMap.isEmpty()) {
-                acquiredMapEmpty.signalAll();
-            }
-            if (!freeQueue.isEmpty()) {
-                freeQueueNotEmpty.signalAll();
-            }
-            if (lock != null || removed) {
-                return true;
-            }
-            return false;
+            idleTimeoutNanos = timeUnit.toNanos(timeout);
         } finally {
-            mainLock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * Drops resources older than the lifetime, counted from when they joined the pool. A free resource is evicted, an acquired
+     * one when it is released. A factory-backed pool destroys them. Takes effect the next time the pool opens.
+     * 
+     * @param lifetime how long a resource may stay in the pool, 0 to keep resources forever, the default
+     * @param timeUnit the time unit of the {@code lifetime} argument
+     */
+    public void setMaxLifetime(long lifetime, TimeUnit timeUnit) {
+
+        if (lifetime < 0L) {
+            throw new IllegalArgumentException("lifetime must not be negative");
+        }
+        mainLock.lock();
+        try {
+            maxLifetimeNanos = timeUnit.toNanos(lifetime);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets the check used by validate on borrow and validate on return. Resources that fail it are dropped from the pool, and
+     * destroyed if the pool has a factory.
+     * 
+     * @param validator the check, or <code>null</code> to stop validating
+     */
+    public void setValidator(ResourceValidator<? super R> validator) {
+
+        this.validator = validator;
+    }
+
+    /**
+     * Validates released resources on the executor before they are free again. Until then a released resource still counts as
+     * acquired.
+     * 
+     * @param executor runs the validations, or <code>null</code> to stop validating on return, the default. A rejected
+     *            validation runs in the releasing thread.
+     */
+    public void setValidateOnReturn(Executor executor) {
+
+        this.returnValidator = executor;
+    }
+
+    /**
+     * Sets where the factory runs when no acquiring thread waits on it: creations for asynchronous acquires and open(PoolSpec)
+     * warm-ups without an executor of their own. The common fork join pool suits a factory that never blocks. Give a factory
+     * doing I/O an executor of its own, or its slow creations starve every other user of the common pool.
+     * 
+     * @param executor runs the creations, the common fork join pool by default
+     */
+    public void setCreationExecutor(Executor executor) {
+
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Validates resources in acquire before handing them out, unless they were validated within the window. A resource that
+     * fails is dropped and acquire tries the next one. Resources handed to acquireAsync are not validated on borrow.
+     * 
+     * @param window how long a validation stays good, 0 to validate on every borrow
+     * @param timeUnit the time unit of the {@code window} argument
+     */
+    public void setValidateOnBorrow(long window, TimeUnit timeUnit) {
+
+        if (window < 0L) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.borrowWindowNanos = timeUnit.toNanos(window);
+    }
+
+    /**
+     * Watches a sample of the acquired resources and reports, through the event listener, those held longer than the threshold
+     * along with the stack of the acquire that took them. Takes effect the next time the pool opens.
+     * 
+     * @param threshold how long a resource may be held before it is reported
+     * @param timeUnit the time unit of the {@code threshold} argument
+     * @param sampling watch one acquire in this many, 1 to watch all of them, 0 to stop leak detection, the default
+     */
+    public void setLeakDetection(long threshold, TimeUnit timeUnit, int sampling) {
+
+        if (sampling < 0 || (sampling > 0 && threshold <= 0L)) {
+            throw new IllegalArgumentException("sampling must not be negative and threshold must be positive");
+        }
+        mainLock.lock();
+        try {
+            leakThresholdNanos = timeUnit.toNanos(threshold);
+            leakSampling = sampling;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets how much waiting one level of priority is worth. A waiter is served ahead of lower priority waiters that arrived less
+     * than this much earlier per level between them, and behind those that arrived before. The default is 10 milliseconds.
+     * 
+     * @param step the aging step, 0 to serve waiters in arrival order whatever their priority
+     * @param timeUnit the time unit of the {@code step} argument
+     */
+    public void setAging(long step, TimeUnit timeUnit) {
+
+        if (step < 0L) {
+            throw new IllegalArgumentException("step must not be negative");
+        }
+        mainLock.lock();
+        try {
+            agingNanos = timeUnit.toNanos(step);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets how acquire waits for a resource when none is free. Applies to acquires that start waiting after the call.
+     * 
+     * @param waitStrategy the wait strategy, {@link WaitStrategy#PARK} by default
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        mainLock.lock();
+        try {
+            this.waitStrategy = waitStrategy;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets which free resource acquire takes. Takes effect the next time the pool opens.
+     * 
+     * @param selectionPolicy the selection policy, {@link SelectionPolicy#FIFO} by default
+     */
+    public void setSelectionPolicy(SelectionPolicy selectionPolicy) {
+
+        if (selectionPolicy == null) {
+            throw new NullPointerException();
+        }
+        mainLock.lock();
+        try {
+            this.selectionPolicy = selectionPolicy;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Bounds how many acquires may wait at once. When that many wait, an acquire that finds nothing free is rejected at once:
+     * one with a timeout returns null, one without fails with a RejectedExecutionException. Applies to acquires that start
+     * waiting after the call.
+     * 
+     * @param maxWaiters the most waiting acquires, {@link Integer#MAX_VALUE} by default
+     */
+    public void setMaxWaiters(int maxWaiters) {
+
+        if (maxWaiters < 0) {
+            throw new IllegalArgumentException("maxWaiters must not be negative");
+        }
+        mainLock.lock();
+        try {
+            this.maxWaiters = maxWaiters;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sets whether an acquire with a timeout is rejected at once, returning null, when it would most likely time out anyway.
+     * The wait is estimated from the queue ahead of it and the average time between resources freeing up while the pool was
+     * exhausted, so nothing is rejected before the pool has been exhausted for two releases. The average is forgotten as soon as
+     * a resource frees up with nobody waiting, and an acquire with nobody ahead of it is never rejected, so a stale estimate
+     * cannot keep rejecting once the pool recovers. Off by default.
+     * 
+     * @param deadlineAdmission <code>true</code> to reject acquires whose estimated wait exceeds their timeout
+     */
+    public void setDeadlineAdmission(boolean deadlineAdmission) {
+
+        mainLock.lock();
+        try {
+            this.deadlineAdmission = deadlineAdmission;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Changes how many resources a factory-backed pool grows to, for example from a {@link PoolSizeController}. Raising it lets
+     * waiting acquirers create resources at once. Lowering it destroys free resources above the new maximum straight away and
+     * acquired ones as they are released. An acquireAll of more than the new maximum waits until it is raised again.
+     * 
+     * @param maxTotal the most resources acquire grows the pool to, at least minIdle
+     * @throws IllegalStateException if the pool has no factory
+     */
+    public void setMaxTotal(int maxTotal) {
+
+        if (factory == null) {
+            throw new IllegalStateException("No factory");
+        }
+        if (maxTotal <= 0 || maxTotal < minIdle) {
+            throw new IllegalArgumentException("Need minIdle <= maxTotal and maxTotal > 0");
+        }
+        List<R> dropped = new ArrayList<R>();
+        mainLock.lock();
+        try {
+            this.maxTotal = maxTotal;
+            if (isOpen) {
+                FreeList.Node<R> node;
+                while (locks.size() + creating > maxTotal && (node = freeQueue.poll()) != null) {
+                    disarm(node);
+                    locks.remove(node.resource);
+                    dropped.add(node.resource);
+                    if (listener != null) {
+                        listener.removed(node.resource);
+                    }
+                }
+                // the first waiter creates and passes the room on to the next
+                signalCapacity();
+            }
+        } finally {
+            unlock();
+        }
+        destroy(dropped);
+    }
+
+    /**
+     * @return the most resources acquire grows the pool to, {@link Integer#MAX_VALUE} for a pool without a factory
+     */
+    public int getMaxTotal() {
+
+        return maxTotal;
+    }
+
+    /**
+     * @return the number of free resources a factory-backed pool keeps, 0 for a pool without a factory
+     */
+    public int getMinIdle() {
+
+        return minIdle;
+    }
+
+    /**
+     * @return the number of resources currently acquired, 0 if the pool is closed
+     */
+    public int getInUseCount() {
+
+        mainLock.lock();
+        try {
+            return isOpen ? acquiredMap.size() : 0;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the number of free resources, 0 if the pool is closed
+     */
+    public int getIdleCount() {
+
+        mainLock.lock();
+        try {
+            return isOpen ? freeQueue.size() : 0;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the number of acquire calls, blocked or asynchronous, waiting for a resource
+     */
+    public int getWaiterCount() {
+
+        mainLock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Evicts free resources, those free the longest first, and destroys them if the pool has a factory.
+     * 
+     * @param max the most resources to evict
+     * @return the number of resources evicted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public int evictIdle(int max) {
+
+        List<R> dropped = new ArrayList<R>();
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            FreeList.Node<R> node;
+            while (dropped.size() < max && (node = freeQueue.poll()) != null) {
+                disarm(node);
+                locks.remove(node.resource);
+                dropped.add(node.resource);
+                if (listener != null) {
+                    listener.removed(node.resource);
+                }
+            }
+        } finally {
+            unlock();
+        }
+        if (factory != null) {
+            destroy(dropped);
+        }
+        return dropped.size();
+    }
+
+    /**
+     * Tells a factory-backed pool that its factory, which ran out of room, may be able to create again. The first waiting
+     * acquirer retries.
+     * 
+     * @return <code>false</code> if nobody was waiting
+     */
+    boolean capacityFreed() {
+
+        mainLock.lock();
+        try {
+            if (waiters.isEmpty()) {
+                return false;
+            }
+            signalCapacity();
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    public boolean isOpen() {
+
+        return isOpen;
+    }
+
+    /**
+     * This blocks until all acquired resources are released.
+     * 
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public void close() throws InterruptedException {
+
+        List<R> dropped;
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+
+            while (!acquiredMap.isEmpty()) {
+                acquiredMapEmpty.await();
+                if (!isOpen) {
+                    throw new IllegalStateException("Not open");
+                }
+            }
+            isOpen = false;
+            dropped = freeResources();
+            stopReaper();
+            locks = null;
+            acquiredMap = null;
+            freeQueue = null;
+            wakeAll();
+            if (listener != null) {
+                listener.closed();
+            }
+        } finally {
+            unlock();
+
+        }
+        destroy(dropped);
+    }
+
+    /**
+     * This closes the pool immediately without waiting for all acquired resources to be released. A factory-backed pool destroys
+     * the acquired resources along with the free ones, since they can no longer be released to it.
+     * 
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public void closeNow() throws InterruptedException {
+
+        List<R> dropped;
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            isOpen = false;
+            dropped = freeResources();
+            if (dropped != null) {
+                for (FreeList.Node<R> node : acquiredMap.values()) {
+                    // a validation under way destroys its resource itself once it sees the pool closed
+                    if (!node.validating && !node.due) {
+                        dropped.add(node.resource);
+                    }
+                }
+            }
+            stopReaper();
+            locks = null;
+            acquiredMap = null;
+            freeQueue = null;
+            acquiredMapEmpty.signalAll();
+            wakeAll();
+            if (listener != null) {
+                listener.closed();
+            }
+        } finally {
+            unlock();
+
+        }
+        destroy(dropped);
+    }
+
+    /**
+     * Blocks until a resource is available. A factory-backed pool below maxTotal creates one instead of waiting.
+     * 
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     * @throws RejectedExecutionException if as many acquires already wait as {@link #setMaxWaiters(int)} allows
+     */
+    public R acquire() throws InterruptedException {
+
+        return resourceOf(acquire(0, false, 0L));
+    }
+
+    /**
+     * Blocks until a resource is available. Among waiting acquirers, a higher priority gets the next released resource first,
+     * see {@link #setAging(long, TimeUnit)}.
+     * 
+     * @param priority the priority of the caller, higher goes first, 0 for plain acquire
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     * @throws RejectedExecutionException if as many acquires already wait as {@link #setMaxWaiters(int)} allows
+     */
+    public R acquire(int priority) throws InterruptedException {
+
+        return resourceOf(acquire(priority, false, 0L));
+    }
+
+    /**
+     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval specified in
+     * the acquire(long, TimeUnit) method, null is returned.
+     * 
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     */
+    public R acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return resourceOf(acquire(0, true, timeUnit.toNanos(timeout)));
+    }
+
+    /**
+     * Tries to acquire a resource within a given time. Among waiting acquirers, a higher priority gets the next released resource
+     * first, see {@link #setAging(long, TimeUnit)}.
+     * 
+     * @param priority the priority of the caller, higher goes first, 0 for plain acquire
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     */
+    public R acquire(int priority, long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return resourceOf(acquire(priority, true, timeUnit.toNanos(timeout)));
+    }
+
+    /**
+     * Blocks until a resource is available and leases it. Closing the lease releases the resource.
+     * 
+     * @return the lease of the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     * @throws RejectedExecutionException if as many acquires already wait as {@link #setMaxWaiters(int)} allows
+     */
+    public Lease<R> acquireLease() throws InterruptedException {
+
+        return leaseOf(acquire(0, false, 0L));
+    }
+
+    /**
+     * Tries to acquire and lease a resource within a given time. Closing the lease releases the resource.
+     * 
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the lease of the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws RuntimeException if the factory fails to create the resource
+     */
+    public Lease<R> acquireLease(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return leaseOf(acquire(0, true, timeUnit.toNanos(timeout)));
+    }
+
+    private R resourceOf(FreeList.Node<R> node) {
+
+        return node == null ? null : node.resource;
+    }
+
+    /**
+     * Starts a lease on an acquired node. The acquiring thread owns the node until it releases it, so the lease is stamped
+     * without the lock, and the release publishes the stamp to the next acquirer.
+     */
+    private Lease<R> leaseOf(FreeList.Node<R> node) {
+
+        return node == null ? null : Lease.begin(this, node);
+    }
+
+    private FreeList.Node<R> acquire(int priority, boolean timed, long nanos) throws InterruptedException {
+
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        Throwable trace = sampleLeak();
+        while (true) {
+            FreeList.Node<R> node = take(priority, timed, nanos);
+            if (node == null) {
+                return null;
+            }
+            // due was set by checkOut when the borrow validation is needed
+            if (!node.due || checkBorrowed(node)) {
+                if (trace != null) {
+                    mainLock.lock();
+                    try {
+                        watch(node, trace);
+                    } finally {
+                        unlock();
+                    }
+                }
+                return node;
+            }
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Takes a free resource, creates one or waits for one to be released.
+     * 
+     * @return the node of the resource acquired or <code>null</code> on timeout
+     */
+    private FreeList.Node<R> take(int priority, boolean timed, long nanos) throws InterruptedException {
+
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            boolean heldBack = batchOverdue();
+            if (!heldBack && !freeQueue.isEmpty()) {
+                FreeList.Node<R> node = freeQueue.take();
+                checkOut(node);
+                return node;
+            }
+            // the factory was out of room, no point asking again before being told
+            boolean outOfRoom = false;
+            if (!heldBack && reserveCreation()) {
+                FreeList.Node<R> node = create();
+                if (node != null) {
+                    return node;
+                }
+                // the factory is out of room, released in the meantime or wait like a full pool
+                if (!freeQueue.isEmpty()) {
+                    node = freeQueue.take();
+                    checkOut(node);
+                    return node;
+                }
+                outOfRoom = true;
+            }
+            if (!admit(1, timed, nanos)) {
+                return null;
+            }
+            WaiterQueue.Waiter<R> waiter = enqueue(new WaiterQueue.Waiter<R>(mainLock.newCondition()), priority);
+            WaitStrategy strategy = waitStrategy;
+            boolean spun = false;
+            try {
+                while (!served(waiter)) {
+                    // woken because a resource left a full pool, room to create one
+                    if (!outOfRoom && !batchOverdue() && reserveCreation()) {
+                        waiters.remove(waiter);
+                        signalCapacity();
+                        FreeList.Node<R> node = create();
+                        if (node == null && !freeQueue.isEmpty()) {
+                            node = freeQueue.take();
+                            checkOut(node);
+                        }
+                        if (node != null) {
+                            if (listener != null) {
+                                listener.waited(System.nanoTime() - waiter.since);
+                            }
+                            return node;
+                        }
+                        // the factory is out of room, back to the same place in the queue until told again
+                        waiters.requeue(waiter);
+                        outOfRoom = true;
+                    }
+                    if (timed && nanos <= 0L) {
+                        // timeout, return null
+                        if (listener != null) {
+                            long waitNanos = System.nanoTime() - waiter.since;
+                            listener.waited(waitNanos);
+                            listener.timedOut(waitNanos);
+                        }
+                        return null;
+                    }
+                    long budget = strategy == WaitStrategy.BUSY_SPIN ? Long.MAX_VALUE
+                            : strategy == WaitStrategy.SPIN_THEN_PARK && !spun ? spinBudget() : 0L;
+                    if (budget > 0L) {
+                        spun = true;
+                        long start = System.nanoTime();
+                        spin(waiter, timed ? Math.min(budget, nanos) : budget);
+                        if (timed) {
+                            nanos -= System.nanoTime() - start;
+                        }
+                    } else if (!timed) {
+                        waiter.condition.await();
+                    } else {
+                        nanos = waiter.condition.awaitNanos(nanos);
+                    }
+                    outOfRoom = false;
+                    if (!isOpen) {
+                        throw new IllegalStateException("Not open");
+                    }
+                }
+                return waiter.node;
+            } catch (InterruptedException e) {
+                abandon(waiter);
+                throw e;
+            } finally {
+                waiters.remove(waiter);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Blocks until n resources are available and acquires all of them at once. Either all n are acquired or none is and nothing
+     * is held while waiting, so two callers each needing most of the pool never deadlock holding half of it each.
+     * 
+     * @param n how many resources to acquire
+     * @return the resources acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws IllegalArgumentException if n is not positive, more than a factory-backed pool's maxTotal or more than a pool
+     *             without a factory holds
+     * @throws RuntimeException if the factory fails to create a resource
+     * @throws RejectedExecutionException if as many acquires already wait as {@link #setMaxWaiters(int)} allows
+     */
+    public List<R> acquireAll(int n) throws InterruptedException {
+
+        return acquireAll(n, false, 0L);
+    }
+
+    /**
+     * Tries to acquire n resources at once within a given time. If they cannot all be acquired within the timeout interval, none
+     * is acquired and null is returned.
+     * 
+     * @param n how many resources to acquire
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resources acquired or null if they were not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     * @throws IllegalArgumentException if n is not positive, more than a factory-backed pool's maxTotal or more than a pool
+     *             without a factory holds
+     * @throws RuntimeException if the factory fails to create a resource
+     */
+    public List<R> acquireAll(int n, long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return acquireAll(n, true, timeUnit.toNanos(timeout));
+    }
+
+    private List<R> acquireAll(int n, boolean timed, long nanos) throws InterruptedException {
+
+        if (n <= 0 || (factory != null && n > maxTotal)) {
+            throw new IllegalArgumentException("n must be between 1 and maxTotal");
+        }
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        Throwable trace = sampleLeak();
+        List<R> batch = new ArrayList<R>(n);
+        while (true) {
+            if (!gather(batch, n, timed, nanos)) {
+                return null;
+            }
+            if (checkBatch(batch, trace)) {
+                return batch;
+            }
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Gathers n resources into the batch, giving back what it gathered if it fails or times out.
+     * 
+     * @return <code>false</code> on timeout
+     */
+    private boolean gather(List<R> batch, int n, boolean timed, long nanos) throws InterruptedException {
+
+        boolean granted = false;
+        List<R> dropped = new ArrayList<R>();
+        mainLock.lock();
+        try {
+            granted = fill(batch, n, timed, nanos, dropped);
+            return granted;
+        } finally {
+            if (!granted) {
+                dropped.addAll(giveBack(batch));
+            }
+            unlock();
+            if (factory != null) {
+                destroy(dropped);
+            }
+        }
+    }
+
+    /**
+     * Queues for a batch of n until it can be granted whole. A waiting batch holds no resource: releases go to the free queue
+     * until they cover it, or to waiters of one resource queued behind it in the meantime. Once the batch has waited longer
+     * than the aging step, single acquirers stop overtaking it and queue behind it, so it is never starved by them. Batches
+     * are granted in arrival order, so none is overtaken by a smaller one. Must be called with the main lock held once.
+     * 
+     * @param dropped collects the resources that left the pool while being given back, to destroy once the lock is released
+     * @return <code>false</code> on timeout
+     */
+    private boolean fill(List<R> batch, int n, boolean timed, long nanos, List<R> dropped) throws InterruptedException {
+
+        if (!isOpen) {
+            throw new IllegalStateException("Not open");
+        }
+        if (factory == null && n > locks.size()) {
+            throw new IllegalArgumentException("n is more than the pool holds");
+        }
+        if (waiters.isEmpty() && freeQueue.size() + room() >= n) {
+            if (grant(batch, n)) {
+                return true;
+            }
+            dropped.addAll(giveBack(batch));
+        }
+        int missing = n - freeQueue.size() - room();
+        if ((missing > 0 || !waiters.isEmpty()) && !admit(Math.max(missing, 1), timed, nanos)) {
+            return false;
+        }
+        WaiterQueue.Waiter<R> waiter = new WaiterQueue.Waiter<R>(mainLock.newCondition());
+        // set before it is queued, batches are queued apart
+        waiter.batch = batch;
+        waiter.wanted = n;
+        enqueue(waiter, 0);
+        try {
+            while (batch.size() < n) {
+                // first in line and covered by what is free and what can still be created
+                if (nextServed(freeQueue.size() + room()) == waiter) {
+                    waiters.remove(waiter);
+                    if (grant(batch, n)) {
+                        return true;
+                    }
+                    dropped.addAll(giveBack(batch));
+                    waiters.requeue(waiter);
+                }
+                if (timed && nanos <= 0L) {
+                    if (listener != null) {
+                        long waitNanos = System.nanoTime() - waiter.since;
+                        listener.waited(waitNanos);
+                        listener.timedOut(waitNanos);
+                    }
+                    return false;
+                }
+                if (!timed) {
+                    waiter.condition.await();
+                } else {
+                    nanos = waiter.condition.awaitNanos(nanos);
+                }
+                if (!isOpen) {
+                    throw new IllegalStateException("Not open");
+                }
+            }
+            return true;
+        } finally {
+            waiters.remove(waiter);
+            if (isOpen) {
+                passOnFree();
+            }
+        }
+    }
+
+    /**
+     * Hands the free resources a batch no longer gathers to the waiters of one resource it held back. Must be called with the
+     * main lock held.
+     */
+    private void passOnFree() {
+
+        WaiterQueue.Waiter<R> waiter;
+        while (!freeQueue.isEmpty() && (waiter = nextServed(freeQueue.size() + room())) != null && waiter.batch == null) {
+            FreeList.Node<R> node = freeQueue.take();
+            disarm(node);
+            offer(node);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if a batch at the head of the queue has waited longer than the aging step. Single acquirers then
+     *         queue behind it instead of taking the free resources and the room it gathers. Must be called with the main lock
+     *         held.
+     */
+    private boolean batchOverdue() {
+
+        WaiterQueue.Waiter<R> head = waiters.peek();
+        return head != null && head.batch != null && System.nanoTime() - head.since - agingNanos > 0L;
+    }
+
+    /**
+     * Grants a batch whole, taking the free resources and creating the rest. Must be called with the main lock held once and
+     * with what is free and what can still be created covering the batch; the lock is released while the factory runs.
+     * 
+     * @return <code>false</code> if the factory ran out of room, with the batch partly gathered
+     */
+    private boolean grant(List<R> batch, int n) {
+
+        while (batch.size() < n && !freeQueue.isEmpty()) {
+            FreeList.Node<R> node = freeQueue.take();
+            checkOut(node);
+            batch.add(node.resource);
+        }
+        // reserved together, so no other acquire creates into the room while the factory runs
+        int reserved = n - batch.size();
+        creating += reserved;
+        try {
+            while (reserved > 0) {
+                // create gives this reservation back
+                reserved--;
+                FreeList.Node<R> node = create();
+                if (node == null) {
+                    return false;
+                }
+                batch.add(node.resource);
+            }
+            return true;
+        } finally {
+            if (reserved > 0) {
+                creating -= reserved;
+                signalCapacity();
+            }
+        }
+    }
+
+    /**
+     * @return how many more resources a factory-backed pool may create, 0 without a factory. Must be called with the main lock
+     *         held and the pool open.
+     */
+    private int room() {
+
+        return factory == null ? 0 : Math.max(0, maxTotal - locks.size() - creating);
+    }
+
+    /**
+     * Validates the resources of a gathered batch that are due and watches the batch if its acquire was sampled for leaks. If a
+     * resource fails, it is dropped and the rest are given back, so the batch is gathered again from scratch rather than held
+     * in part while waiting.
+     * 
+     * @return <code>true</code> if the batch can be handed out
+     */
+    private boolean checkBatch(List<R> batch, Throwable trace) {
+
+        List<FreeList.Node<R>> due = null;
+        mainLock.lock();
+        try {
+            for (R resource : batch) {
+                FreeList.Node<R> node = acquiredMap.get(resource);
+                if (node != null && node.due) {
+                    if (due == null) {
+                        due = new ArrayList<FreeList.Node<R>>();
+                    }
+                    due.add(node);
+                }
+            }
+        } finally {
+            unlock();
+        }
+        boolean valid = true;
+        if (due != null) {
+            for (FreeList.Node<R> node : due) {
+                if (!checkBorrowed(node)) {
+                    batch.remove(node.resource);
+                    valid = false;
+                }
+            }
+        }
+        if (valid && trace == null) {
+            return true;
+        }
+        List<R> dropped = null;
+        mainLock.lock();
+        try {
+            if (!valid) {
+                dropped = giveBack(batch);
+            } else if (isOpen) {
+                for (R resource : batch) {
+                    FreeList.Node<R> node = acquiredMap.get(resource);
+                    if (node != null) {
+                        watch(node, trace);
+                    }
+                }
+            }
+        } finally {
+            unlock();
+        }
+        if (dropped != null && factory != null) {
+            destroy(dropped);
+        }
+        return valid;
+    }
+
+    /**
+     * Puts back the resources of a batch that was not handed out and empties it. Must be called with the main lock held.
+     * 
+     * @return the resources that left the pool, past their lifetime or because the pool closed
+     */
+    private List<R> giveBack(List<R> batch) {
+
+        List<R> dropped = new ArrayList<R>();
+        for (R resource : batch) {
+            if (!isOpen) {
+                dropped.add(resource);
+                continue;
+            }
+            FreeList.Node<R> node = acquiredMap.get(resource);
+            if (node != null && putBack(node)) {
+                dropped.add(resource);
+            }
+        }
+        batch.clear();
+        return dropped;
+    }
+
+    /**
+     * Returns a view of the pool that streams resources to subscribers as they free up, as many as each one requests. A waiting
+     * request holds a place in the queue like acquireAsync, never a thread. Subscribers release the resources they are sent, a
+     * subscription fails when the pool closes.
+     * 
+     * @return the publisher, one for any number of subscribers
+     */
+    public Flow.Publisher<R> asPublisher() {
+
+        return new LeasePublisher<R>(this);
+    }
+
+    /**
+     * Acquires a resource without blocking the calling thread. The future completes with the resource as soon as one is free,
+     * in the same order as blocked acquirers. Cancelling the future gives up its place in the queue. A factory-backed pool below
+     * maxTotal creates the resource on the creation executor; the future fails if the factory does. It fails with a
+     * RejectedExecutionException if as many acquires already wait as {@link #setMaxWaiters(int)} allows.
+     * 
+     * @return a future completed with the resource acquired
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public CompletableFuture<R> acquireAsync() {
+
+        return acquireAsync(false, 0L);
+    }
+
+    /**
+     * Acquires a resource without blocking the calling thread. If a resource cannot be acquired within the timeout interval, the
+     * future completes with null. Cancelling the future gives up its place in the queue.
+     * 
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return a future completed with the resource acquired or with null if the resource was not acquired within the timeout
+     *         interval
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public CompletableFuture<R> acquireAsync(long timeout, TimeUnit timeUnit) {
+
+        return acquireAsync(true, timeUnit.toNanos(timeout));
+    }
+
+    private CompletableFuture<R> acquireAsync(boolean timed, long nanos) {
+
+        CompletableFuture<R> future = new CompletableFuture<R>();
+        Throwable trace = sampleLeak();
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            boolean heldBack = batchOverdue();
+            if (!heldBack && !freeQueue.isEmpty()) {
+                FreeList.Node<R> node = freeQueue.take();
+                checkOut(node);
+                if (trace != null) {
+                    watch(node, trace);
+                }
+                future.complete(node.resource);
+                return future;
+            }
+            boolean creation = !heldBack && reserveCreation();
+            if (!creation) {
+                try {
+                    if (!admit(1, timed, nanos)) {
+                        future.complete(null);
+                        return future;
+                    }
+                } catch (RejectedExecutionException e) {
+                    future.completeExceptionally(e);
+                    return future;
+                }
+            }
+            final WaiterQueue.Waiter<R> waiter = enqueue(new WaiterQueue.Waiter<R>(future), 0);
+            waiter.trace = trace;
+            if (creation) {
+                createAsync(waiter);
+            }
+            future.whenComplete(new BiConsumer<R, Throwable>() {
+                @Override
+                public void accept(R resource, Throwable failure) {
+
+                    // cancelled or timed out, leave the queue
+                    if (resource == null) {
+                        mainLock.lock();
+                        try {
+                            if (waiter.linked) {
+                                waiters.remove(waiter);
+                                if (listener != null) {
+                                    long waitNanos = System.nanoTime() - waiter.since;
+                                    listener.waited(waitNanos);
+                                    if (failure == null) {
+                                        listener.timedOut(waitNanos);
+                                    }
+                                }
+                            }
+                        } finally {
+                            unlock();
+                        }
+                    }
+                }
+            });
+        } finally {
+            unlock();
+        }
+        if (timed) {
+            future.completeOnTimeout(null, nanos, TimeUnit.NANOSECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Release the resource back to the pool.
+     * 
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    public void release(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        FreeList.Node<R> node;
+        Executor executor = returnValidator;
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            node = checkIn(resource, executor);
+        } finally {
+            unlock();
+        }
+        if (node != null) {
+            settle(node, executor);
+        }
+    }
+
+    /**
+     * Releases every resource in one lock round-trip. Either all of them are released or, if one is not in the pool, none is.
+     * 
+     * @param resources the resources released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if a resource is not in the pool
+     */
+    public void releaseAll(Collection<? extends R> resources) {
+
+        for (R resource : resources) {
+            if (resource == null) {
+                throw new NullPointerException();
+            }
+        }
+        List<FreeList.Node<R>> pending = null;
+        Executor executor = returnValidator;
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            for (R resource : resources) {
+                if (!locks.containsKey(resource)) {
+                    throw new IllegalStateException("No such resource in the pool");
+                }
+            }
+            for (R resource : resources) {
+                FreeList.Node<R> node = checkIn(resource, executor);
+                if (node != null) {
+                    if (pending == null) {
+                        pending = new ArrayList<FreeList.Node<R>>();
+                    }
+                    pending.add(node);
+                }
+            }
+        } finally {
+            unlock();
+        }
+        if (pending != null) {
+            for (FreeList.Node<R> node : pending) {
+                settle(node, executor);
+            }
+        }
+    }
+
+    /**
+     * Takes an acquired resource back. Must be called with the main lock held.
+     * 
+     * @return the node of the resource if it still needs validating or destroying once the lock is released, with validating
+     *         set for the former, <code>null</code> otherwise
+     */
+    private FreeList.Node<R> checkIn(R resource, Executor executor) {
+
+        FreeList.Node<R> node = locks.get(resource);
+        if (node == null) {
+            throw new IllegalStateException("No such resource in the pool");
+        }
+        if (node.validating || !acquiredMap.containsKey(resource)) {
+            return null;
+        }
+        // a lease still open on a resource released directly
+        Lease.end(node);
+        disarm(node);
+        node.leakTrace = null;
+        if (node.acquiredAt != 0L) {
+            long holdNanos = System.nanoTime() - node.acquiredAt;
+            node.acquiredAt = 0L;
+            holdNanosAverage += (holdNanos - holdNanosAverage) >> 3;
+            if (listener != null) {
+                listener.released(resource);
+                listener.held(resource, holdNanos);
+            }
+        } else if (listener != null) {
+            listener.released(resource);
+        }
+        if (executor != null && validator != null) {
+            // stays acquired until validated
+            node.validating = true;
+            return node;
+        }
+        return putBack(node) && factory != null ? node : null;
+    }
+
+    /**
+     * Validates a resource checkIn kept acquired on the executor, or destroys one it retired. Called without the main lock.
+     */
+    private void settle(final FreeList.Node<R> node, Executor executor) {
+
+        if (!node.validating) {
+            factory.destroy(node.resource);
+            return;
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+
+                checkReturned(node);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Takes a released resource out of the acquired map and makes it free, unless a remove is waiting for it or it is past its
+     * lifetime. Must be called with the main lock held.
+     * 
+     * @return <code>true</code> if the resource was past its lifetime and left the pool
+     */
+    private boolean putBack(FreeList.Node<R> node) {
+
+        R resource = node.resource;
+        boolean retired = false;
+        acquiredMap.remove(resource);
+        if (pendingRemoval.containsKey(resource)) {
+            locks.remove(resource);
+            pendingRemoval.put(resource, Boolean.TRUE);
+            change.signalAll();
+            if (listener != null) {
+                listener.removed(resource);
+            }
+            signalCapacity();
+        } else if (locks.size() > maxTotal
+                || (maxLifetimeNanos > 0L && System.nanoTime() - node.createdAt - maxLifetimeNanos >= 0L)) {
+            // above a lowered maxTotal or past its lifetime, leave room for a new one
+            locks.remove(resource);
+            retired = true;
+            if (listener != null) {
+                listener.removed(resource);
+            }
+            signalCapacity();
+        } else {
+            offer(node);
+        }
+        if (acquiredMap.isEmpty()) {
+            acquiredMapEmpty.signalAll();
+        }
+        return retired;
+    }
+
+    /**
+     * Validates a released resource, then puts it back or drops it. A resource removed in the meantime is left alone, one
+     * released into a pool closed in the meantime is destroyed.
+     */
+    private void checkReturned(FreeList.Node<R> node) {
+
+        boolean valid = isValid(node.resource);
+        boolean dropped = false;
+        mainLock.lock();
+        try {
+            node.validating = false;
+            if (!isOpen) {
+                dropped = true;
+            } else if (locks.get(node.resource) != node) {
+                return;
+            } else if (valid) {
+                node.lastValidated = System.nanoTime();
+                dropped = putBack(node);
+            } else {
+                discard(node);
+                dropped = true;
+            }
+        } finally {
+            unlock();
+        }
+        if (dropped && factory != null) {
+            factory.destroy(node.resource);
+        }
+    }
+
+    /**
+     * Validates a resource acquire took from the pool, dropping it if it fails. Called without the main lock.
+     * 
+     * @return <code>true</code> if the resource can be handed out
+     */
+    private boolean checkBorrowed(FreeList.Node<R> node) {
+
+        boolean valid = isValid(node.resource);
+        boolean dropped = false;
+        mainLock.lock();
+        try {
+            node.due = false;
+            if (!isOpen) {
+                // left out by closeNow, which destroyed the rest
+                dropped = true;
+            } else if (valid) {
+                node.lastValidated = System.nanoTime();
+                return true;
+            } else if (locks.get(node.resource) == node) {
+                discard(node);
+                dropped = true;
+            }
+        } finally {
+            unlock();
+        }
+        if (dropped && factory != null) {
+            factory.destroy(node.resource);
+        }
+        return false;
+    }
+
+    private boolean isValid(R resource) {
+
+        ResourceValidator<? super R> check = validator;
+        if (check == null) {
+            return true;
+        }
+        try {
+            return check.validate(resource);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops an acquired resource that failed validation from the pool. Must be called with the main lock held.
+     */
+    private void discard(FreeList.Node<R> node) {
+
+        R resource = node.resource;
+        disarm(node);
+        acquiredMap.remove(resource);
+        locks.remove(resource);
+        if (pendingRemoval.containsKey(resource)) {
+            pendingRemoval.put(resource, Boolean.TRUE);
+            change.signalAll();
+        }
+        if (listener != null) {
+            listener.removed(resource);
+        }
+        signalCapacity();
+        if (acquiredMap.isEmpty()) {
+            acquiredMapEmpty.signalAll();
+        }
+    }
+
+    /**
+     * Add the resource to the pool.
+     * 
+     * @param resource the resource to be added to the pool
+     * @return <code>true</code> if the resource was added to the pool <code>false</code> if the resource is already in the pool
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public boolean add(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            if (locks.containsKey(resource)) {
+                return false;
+            }
+            FreeList.Node<R> node = new FreeList.Node<R>(resource);
+            node.createdAt = System.nanoTime();
+            node.lastValidated = node.createdAt;
+            locks.put(resource, node);
+            if (listener != null) {
+                listener.added(resource);
+            }
+            offer(node);
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Remove the resource from the pool. This method blocks if the resource that is being removed is currently in use, until that
+     * resource has been released.
+     * 
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    public boolean remove(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            FreeList.Node<R> node = locks.get(resource);
+            if (node == null) {
+                return false;
+            }
+            if (freeQueue.remove(node)) {
+                disarm(node);
+                locks.remove(resource);
+                if (listener != null) {
+                    listener.removed(resource);
+                }
+                signalCapacity();
+                return true;
+            }
+            // in use, release takes it out of the pool instead of handing it to a waiter
+            if (pendingRemoval.containsKey(resource)) {
+                while (pendingRemoval.containsKey(resource)) {
+                    change.await();
+                    if (!isOpen) {
+                        throw new IllegalStateException("Not open");
+                    }
+                }
+                return false;
+            }
+            pendingRemoval.put(resource, Boolean.FALSE);
+            try {
+                while (true) {
+                    Boolean removed = pendingRemoval.get(resource);
+                    if (removed == null) {
+                        return false;
+                    }
+                    if (removed) {
+                        return true;
+                    }
+                    change.await();
+                    if (!isOpen) {
+                        throw new IllegalStateException("Not open");
+                    }
+                }
+            } finally {
+                pendingRemoval.remove(resource);
+                change.signalAll();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Remove the resource from the pool immediately without waiting for it to be released.
+     * 
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    public boolean removeNow(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        mainLock.lock();
+        try {
+            if (!isOpen) {
+                throw new IllegalStateException("Not open");
+            }
+            FreeList.Node<R> node = locks.remove(resource);
+            if (node == null) {
+                return false;
+            }
+            if (listener != null) {
+                listener.removed(resource);
+            }
+            signalCapacity();
+            disarm(node);
+            if (freeQueue.remove(node)) {
+                return true;
+            }
+            acquiredMap.remove(resource);
+            if (pendingRemoval.remove(resource) != null) {
+                change.signalAll();
+            }
+            if (acquiredMap.isEmpty()) {
+                acquiredMapEmpty.signalAll();
+            }
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Reserves the creation of a resource if the pool has a factory and room for one more. Must be called with the main lock
+     * held.
+     */
+    private boolean reserveCreation() {
+
+        if (factory == null || !isOpen || locks.size() + creating >= maxTotal) {
+            return false;
+        }
+        creating++;
+        return true;
+    }
+
+    /**
+     * Creates a resource for the calling thread and checks it out to it. A new resource counts as validated. Must be called
+     * with the main lock held once and a creation reserved; the lock is released while the factory runs.
+     * 
+     * @return the node of the new resource, or <code>null</code> if the factory is out of room
+     */
+    private FreeList.Node<R> create() {
+
+        R resource = null;
+        boolean failed = true;
+        unlock();
+        try {
+            resource = factory.create();
+            failed = false;
+        } finally {
+            mainLock.lock();
+            creating--;
+            if (failed) {
+                signalCapacity();
+            }
+        }
+        if (!isOpen) {
+            if (resource == null) {
+                throw new IllegalStateException("Not open");
+            }
+            unlock();
+            try {
+                factory.destroy(resource);
+            } finally {
+                mainLock.lock();
+            }
+            throw new IllegalStateException("Not open");
+        }
+        if (resource == null) {
+            return null;
+        }
+        FreeList.Node<R> node = install(resource);
+        checkOut(node);
+        return node;
+    }
+
+    /**
+     * Creates a resource on the executor for an asynchronous waiter. The new resource goes through offer like a released one, so
+     * it reaches the first waiting acquirer. If the factory fails, the waiter's future fails with it, if it is out of room the
+     * waiter stays queued. Must be called with the
+     * main lock held and a creation reserved.
+     */
+    private void createAsync(final WaiterQueue.Waiter<R> waiter) {
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+
+                R resource = null;
+                RuntimeException failure = null;
+                try {
+                    resource = factory.create();
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                R dropped = null;
+                mainLock.lock();
+                try {
+                    creating--;
+                    if (failure != null) {
+                        fail(waiter, failure);
+                    } else if (!isOpen) {
+                        dropped = resource;
+                    } else if (resource != null) {
+                        offer(install(resource));
+                    }
+                } finally {
+                    unlock();
+                }
+                if (dropped != null) {
+                    factory.destroy(dropped);
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            creating--;
+            fail(waiter, e);
+        }
+    }
+
+    /**
+     * Fails an asynchronous waiter whose creation failed, unless it was handed a resource in the meantime, and gives the room
+     * back. Must be called with the main lock held.
+     */
+    private void fail(WaiterQueue.Waiter<R> waiter, RuntimeException failure) {
+
+        if (waiter.linked) {
+            waiters.remove(waiter);
+            waiter.failure = failure;
+            wake(waiter);
+        }
+        signalCapacity();
+    }
+
+    /**
+     * Tells the first waiting acquirer that the pool has room to create a resource. A blocked thread is woken to create it
+     * itself, an asynchronous waiter gets a creation on the executor. Must be called with the main lock held.
+     */
+    private void signalCapacity() {
+
+        if (factory == null || waiters.isEmpty()) {
+            return;
+        }
+        WaiterQueue.Waiter<R> waiter = nextServed(freeQueue.size() + room());
+        if (waiter == null) {
+            return;
+        }
+        if (waiter.future == null) {
+            waiter.woken = true;
+            waiter.condition.signal();
+        } else if (reserveCreation()) {
+            createAsync(waiter);
+        }
+    }
+
+    /**
+     * Makes a resource just created by the factory a member of the pool. Must be called with the main lock held.
+     */
+    private FreeList.Node<R> install(R resource) {
+
+        FreeList.Node<R> node = new FreeList.Node<R>(resource);
+        node.createdAt = System.nanoTime();
+        node.lastValidated = node.createdAt;
+        locks.put(resource, node);
+        if (listener != null) {
+            listener.added(resource);
+        }
+        return node;
+    }
+
+    /**
+     * Creates resources one at a time, with the main lock released, until minIdle are free, the pool is full or the factory is
+     * out of room.
+     */
+    private void ensureMinIdle() {
+
+        while (true) {
+            mainLock.lock();
+            try {
+                if (!isOpen || freeQueue.size() + creating >= minIdle || !reserveCreation()) {
+                    return;
+                }
+            } finally {
+                unlock();
+            }
+            R resource = null;
+            boolean failed = true;
+            try {
+                resource = factory.create();
+                failed = false;
+            } finally {
+                publish(resource, failed);
+            }
+            if (resource == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the creations of a warm-up, one ticket at a time, until none are left.
+     */
+    private void prefill(AtomicInteger tickets, AtomicInteger pending, CompletableFuture<Void> done) {
+
+        while (tickets.getAndDecrement() > 0) {
+            R resource = null;
+            RuntimeException failure = null;
+            try {
+                resource = factory.create();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            publish(resource, failure != null);
+            if (failure != null) {
+                done.completeExceptionally(failure);
+            }
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Ends a reserved creation made for the free queue. A new resource is handed to the first waiter or made free, one created
+     * after the pool closed is destroyed. Called without the main lock.
+     */
+    private void publish(R resource, boolean failed) {
+
+        R dropped = null;
+        mainLock.lock();
+        try {
+            creating--;
+            if (failed) {
+                signalCapacity();
+            } else if (!isOpen) {
+                dropped = resource;
+            } else if (resource != null) {
+                offer(install(resource));
+            }
+        } finally {
+            unlock();
+        }
+        if (dropped != null) {
+            factory.destroy(dropped);
+        }
+    }
+
+    /**
+     * @return the free resources of a factory-backed pool, to be destroyed once the pool is closed, or <code>null</code>
+     */
+    private List<R> freeResources() {
+
+        if (factory == null) {
+            return null;
+        }
+        List<R> free = new ArrayList<R>(freeQueue.size());
+        FreeList.Node<R> node;
+        while ((node = freeQueue.poll()) != null) {
+            free.add(node.resource);
+        }
+        return free;
+    }
+
+    private void destroy(List<R> resources) {
+
+        if (resources != null) {
+            for (R resource : resources) {
+                factory.destroy(resource);
+            }
+        }
+    }
+
+    /**
+     * Creates the timer wheel and schedules the reaper, which also reports leaks. The wheel ticks at an eighth of the shortest
+     * timeout, between a millisecond and a second. Must be called with the main lock held.
+     */
+    private void startReaper() {
+
+        long shortest = Math.min(idleTimeoutNanos > 0L ? idleTimeoutNanos : Long.MAX_VALUE,
+                maxLifetimeNanos > 0L ? maxLifetimeNanos : Long.MAX_VALUE);
+        if (leakSampling > 0) {
+            shortest = Math.min(shortest, leakThresholdNanos);
+        }
+        long tick = Math.max(TimeUnit.MILLISECONDS.toNanos(1), Math.min(shortest / 8, TimeUnit.SECONDS.toNanos(1)));
+        wheel = new TimerWheel<FreeList.Node<R>>(tick, 256, System.nanoTime());
+        activeLeakThresholdNanos = leakThresholdNanos;
+        activeLeakSampling = leakSampling;
+        reaper = Reaper.EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    reap();
+                } catch (RuntimeException e) {
+                    // a failing listener, an exception would cancel the reaper for good
+                }
+            }
+        }, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    private void stopReaper() {
+
+        if (reaper != null) {
+            reaper.cancel(false);
+            reaper = null;
+            wheel = null;
+            activeLeakSampling = 0;
+        }
+    }
+
+    /**
+     * Evicts the free resources whose timeout expired. If the pool has a factory the creation executor destroys them and tops
+     * the free resources back up to minIdle, so a slow factory never holds up the reaper every pool shares. An idle resource is
+     * kept while the pool has no more than minIdle free, one past its lifetime is not.
+     */
+    private void reap() {
+
+        List<FreeList.Node<R>> expired = new ArrayList<FreeList.Node<R>>();
+        final List<R> dropped = new ArrayList<R>();
+        final boolean topUp;
+        mainLock.lock();
+        try {
+            if (!isOpen || wheel == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            wheel.advance(now, expired);
+            for (FreeList.Node<R> node : expired) {
+                if (!node.linked) {
+                    // acquired, the leak check of a sampled lease
+                    if (node.leakTrace != null && acquiredMap.get(node.resource) == node && listener != null) {
+                        listener.leakSuspected(node.resource, now - node.leakSince, node.leakTrace);
+                    }
+                    node.leakTrace = null;
+                    continue;
+                }
+                boolean tooOld = maxLifetimeNanos > 0L && now - node.createdAt - maxLifetimeNanos >= 0L;
+                if (!tooOld && freeQueue.size() <= minIdle) {
+                    arm(node);
+                    continue;
+                }
+                freeQueue.remove(node);
+                locks.remove(node.resource);
+                dropped.add(node.resource);
+                if (listener != null) {
+                    listener.removed(node.resource);
+                }
+            }
+            topUp = factory != null && !toppingUp && freeQueue.size() + creating < minIdle;
+            toppingUp |= topUp;
+        } finally {
+            unlock();
+        }
+        if (factory == null || (dropped.isEmpty() && !topUp)) {
+            return;
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    destroy(dropped);
+                    if (topUp) {
+                        ensureMinIdle();
+                    }
+                } catch (RuntimeException e) {
+                    // the factory failed, minIdle is topped up again on a later tick
+                } finally {
+                    if (topUp) {
+                        mainLock.lock();
+                        try {
+                            toppingUp = false;
+                        } finally {
+                            unlock();
+                        }
+                    }
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Schedules the eviction of a resource that just became free, at its idle timeout or the end of its lifetime, whichever
+     * comes first. Must be called with the main lock held.
+     */
+    private void arm(FreeList.Node<R> node) {
+
+        if (wheel == null || (idleTimeoutNanos == 0L && maxLifetimeNanos == 0L)) {
+            return;
+        }
+        long now = System.nanoTime();
+        long deadline = node.createdAt + maxLifetimeNanos;
+        if (idleTimeoutNanos > 0L && (maxLifetimeNanos == 0L || now + idleTimeoutNanos - deadline < 0L)) {
+            deadline = now + idleTimeoutNanos;
+        }
+        if (node.expiry == null) {
+            node.expiry = new TimerWheel.Timeout<FreeList.Node<R>>(node);
+        }
+        wheel.schedule(node.expiry, deadline);
+    }
+
+    /**
+     * @return the stack of the calling acquire if it is sampled for leak detection, <code>null</code> otherwise
+     */
+    private Throwable sampleLeak() {
+
+        int sampling = activeLeakSampling;
+        if (sampling == 0 || ThreadLocalRandom.current().nextInt(sampling) != 0) {
+            return null;
+        }
+        return new Throwable("Acquired by " + Thread.currentThread().getName());
+    }
+
+    /**
+     * Schedules the leak check of a sampled lease. Must be called with the main lock held.
+     */
+    private void watch(FreeList.Node<R> node, Throwable trace) {
+
+        if (!isOpen || wheel == null || acquiredMap.get(node.resource) != node) {
+            return;
+        }
+        if (node.expiry == null) {
+            node.expiry = new TimerWheel.Timeout<FreeList.Node<R>>(node);
+        }
+        node.leakTrace = trace;
+        node.leakSince = System.nanoTime();
+        wheel.schedule(node.expiry, node.leakSince + activeLeakThresholdNanos);
+    }
+
+    private void disarm(FreeList.Node<R> node) {
+
+        if (wheel != null && node.expiry != null) {
+            wheel.cancel(node.expiry);
+        }
+    }
+
+    /**
+     * Hands a resource that just became free to the first waiting thread, or puts it on the free queue when nobody waits. Must
+     * be called with the main lock held and with the resource out of the acquired map.
+     */
+    private void offer(FreeList.Node<R> node) {
+
+        if (waiters.isEmpty()) {
+            // no longer exhausted, the next overload is measured afresh
+            lastHandOff = 0L;
+            handOffNanosAverage = 0L;
+        } else {
+            long now = System.nanoTime();
+            if (lastHandOff != 0L) {
+                long interval = now - lastHandOff;
+                handOffNanosAverage += handOffNanosAverage == 0L ? interval : (interval - handOffNanosAverage) >> 3;
+            }
+            lastHandOff = now;
+        }
+        WaiterQueue.Waiter<R> waiter;
+        do {
+            waiter = nextServed(freeQueue.size() + 1 + room());
+            if (waiter == null) {
+                freeQueue.add(node);
+                arm(node);
+                return;
+            }
+            if (waiter.batch != null) {
+                freeQueue.add(node);
+                arm(node);
+                if (freeQueue.size() >= waiter.wanted) {
+                    // a batch is handed over whole
+                    waiters.remove(waiter);
+                    while (waiter.batch.size() < waiter.wanted) {
+                        FreeList.Node<R> next = freeQueue.take();
+                        checkOut(next);
+                        waiter.batch.add(next.resource);
+                    }
+                }
+                // else covered with what the pool can still create, the waiter creates the rest
+                wake(waiter);
+                return;
+            }
+            waiters.remove(waiter);
+            // skip futures that were cancelled or timed out but have not left the queue yet
+        } while (waiter.future != null && waiter.future.isDone());
+        if (listener != null) {
+            listener.waited(System.nanoTime() - waiter.since);
+        }
+        checkOut(node);
+        if (waiter.trace != null) {
+            watch(node, waiter.trace);
+        }
+        waiter.resource = node.resource;
+        waiter.node = node;
+        wake(waiter);
+    }
+
+    /**
+     * Checks whether a blocked waiter holds the resource it was handed. A resource removed with removeNow after the hand-off but
+     * before the waiter took the lock again is lost to it, the waiter goes back to its place in the queue and takes a free
+     * resource if it is first in line, or waits for another. Must be called with the main lock held.
+     * 
+     * @return <code>true</code> if the waiter was handed a resource that is still its own
+     */
+    private boolean served(WaiterQueue.Waiter<R> waiter) {
+
+        if (waiter.resource == null) {
+            return false;
+        }
+        if (acquiredMap.get(waiter.resource) == waiter.node) {
+            return true;
+        }
+        waiter.resource = null;
+        waiter.node = null;
+        waiters.requeue(waiter);
+        // resources freed since the hand-off went to the free queue while this waiter was out of the queue
+        if (!freeQueue.isEmpty() && nextServed(freeQueue.size()) == waiter) {
+            waiters.remove(waiter);
+            FreeList.Node<R> node = freeQueue.take();
+            checkOut(node);
+            waiter.resource = node.resource;
+            waiter.node = node;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a resource that is no longer free as acquired.
+     */
+    private void checkOut(FreeList.Node<R> node) {
+
+        disarm(node);
+        acquiredMap.put(node.resource, node);
+        node.uses++;
+        long window = borrowWindowNanos;
+        if (window >= 0L && validator != null) {
+            node.due = System.nanoTime() - node.lastValidated - window >= 0L;
+        }
+        if (listener != null || waitStrategy == WaitStrategy.SPIN_THEN_PARK) {
+            node.acquiredAt = System.nanoTime();
+        }
+        if (listener != null) {
+            listener.acquired(node.resource);
+        }
+    }
+
+    /**
+     * @return how long SPIN_THEN_PARK spins, twice the average hold time, or 0 to park straight away when resources are held for
+     *         longer than the spin limit. Must be called with the main lock held.
+     */
+    private long spinBudget() {
+
+        long average = holdNanosAverage;
+        return average > MAX_SPIN_NANOS ? 0L : Math.max(2 * average, TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    /**
+     * Spins, then yields, with the main lock released until the waiter is woken or the budget runs out. Must be called with the
+     * main lock held once, which is held again on return.
+     * 
+     * @param budgetNanos how long to spin, {@link Long#MAX_VALUE} for no limit
+     */
+    private void spin(WaiterQueue.Waiter<R> waiter, long budgetNanos) throws InterruptedException {
+
+        waiter.woken = false;
+        unlock();
+        try {
+            long start = System.nanoTime();
+            long elapsed = 0L;
+            while (!waiter.woken) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (elapsed >= budgetNanos) {
+                    break;
+                }
+                // spin for the first half, then let other threads run
+                if (elapsed < budgetNanos / 2) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                elapsed = System.nanoTime() - start;
+            }
+        } finally {
+            mainLock.lock();
+        }
+    }
+
+    /**
+     * Finds who is served next. Batches are served whole and in arrival order. A waiter of one resource goes ahead of a batch
+     * that cannot be granted yet, so a waiting batch does not hold up the rest of the pool, until the batch has waited longer
+     * than the aging step. From then on what is free is kept for it. Must be called with the main lock held.
+     * 
+     * @param available how many resources there are to hand out
+     * @return the waiter served next, still queued, or <code>null</code> if nobody waits but batches needing more or the
+     *         overdue batch at the head needs more
+     */
+    private WaiterQueue.Waiter<R> nextServed(int available) {
+
+        WaiterQueue.Waiter<R> waiter = waiters.peek();
+        if (waiter == null || waiter.batch == null || waiter.wanted <= available) {
+            return waiter;
+        }
+        if (System.nanoTime() - waiter.since - agingNanos > 0L) {
+            // overdue, what is free waits for the batch
+            return null;
+        }
+        // the first waiter of one resource, behind the batches
+        return waiters.peekSingle();
+    }
+
+    /**
+     * Decides whether an acquire that found nothing free may wait, with the waiter bound and the deadline admission. Must be
+     * called with the main lock held.
+     * 
+     * @param needed how many resources the acquire waits for
+     * @return <code>false</code> if an acquire with a timeout is rejected
+     * @throws RejectedExecutionException if an acquire without a timeout is rejected
+     */
+    private boolean admit(int needed, boolean timed, long nanos) {
+
+        int queued = waiters.size();
+        long estimate = handOffNanosAverage * (queued + needed);
+        // an acquire with nobody ahead always waits, so hand-offs keep being measured however high the estimate is
+        if (queued < maxWaiters && (queued == 0 || !(deadlineAdmission && timed && estimate > nanos))) {
+            return true;
+        }
+        if (listener != null) {
+            listener.rejected(queued, estimate);
+        }
+        if (!timed) {
+            throw new RejectedExecutionException("Too many waiters");
+        }
+        return false;
+    }
+
+    private WaiterQueue.Waiter<R> enqueue(WaiterQueue.Waiter<R> waiter, int priority) {
+
+        waiter.since = System.nanoTime();
+        waiters.add(waiter, priority * agingNanos);
+        return waiter;
+    }
+
+    private void wake(WaiterQueue.Waiter<R> waiter) {
+
+        if (waiter.future == null) {
+            waiter.woken = true;
+            waiter.condition.signal();
+        } else {
+            waiter.next = completions;
+            completions = waiter;
+        }
+    }
+
+    /**
+     * Releases the main lock, then completes the futures handed a resource while it was held. A future cancelled in the meantime
+     * gives its resource back.
+     */
+    private void unlock() {
+
+        WaiterQueue.Waiter<R> waiter = null;
+        if (mainLock.getHoldCount() == 1) {
+            waiter = completions;
+            completions = null;
+        }
+        mainLock.unlock();
+        while (waiter != null) {
+            WaiterQueue.Waiter<R> next = waiter.next;
+            waiter.next = null;
+            R resource = waiter.resource;
+            if (resource == null) {
+                RuntimeException failure = waiter.failure;
+                waiter.future.completeExceptionally(failure != null ? failure : new IllegalStateException("Not open"));
+            } else if (!waiter.future.complete(resource)) {
+                try {
+                    release(resource);
+                } catch (IllegalStateException e) {
+                    // closed in the meantime, nothing to give back to
+                }
+            }
+            waiter = next;
+        }
+    }
+
+    /**
+     * Called when a waiter is interrupted. A resource handed to it in the meantime is passed on instead of being lost.
+     */
+    private void abandon(WaiterQueue.Waiter<R> waiter) {
+
+        waiters.remove(waiter);
+        R resource = waiter.resource;
+        FreeList.Node<R> node = resource != null && isOpen && acquiredMap.get(resource) == waiter.node
+                ? acquiredMap.remove(resource) : null;
+        if (node != null) {
+            waiter.resource = null;
+            offer(node);
+            if (acquiredMap.isEmpty()) {
+                acquiredMapEmpty.signalAll();
+            }
+        }
+    }
+
+    private void wakeAll() {
+
+        WaiterQueue.Waiter<R> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            wake(waiter);
         }
+        change.signalAll();
     }
 }
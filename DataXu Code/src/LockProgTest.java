@@ -1,4 +1,24 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -733,4 +753,1633 @@ public class LockProgTest {
         Assert.assertTrue(lockProg.remove(value));
         Assert.assertTrue(lockProg.remove(value2));
     }
+
+    /**
+     * Test method for {@link LockProg#release(java.lang.Object)}. A released resource goes to the longest waiting thread.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testReleaseHandsOffInOrder() throws InterruptedException {
+
+        lockProg.open();
+        final Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        final Integer[] acquired = new Integer[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        acquired[index] = lockProg.acquire(1000, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+            Thread.sleep(100);
+        }
+        lockProg.release(value);
+        threads[0].join();
+        threads[1].join();
+        Assert.assertEquals(value, acquired[0]);
+        Assert.assertNull(acquired[1]);
+    }
+
+    /**
+     * Test method for {@link LockProg#acquire(long, java.util.concurrent.TimeUnit)}. A waiter that timed out is no longer
+     * handed resources.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireTimeoutLeavesQueue() throws InterruptedException {
+
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        Assert.assertNull(lockProg.acquire(10, TimeUnit.MILLISECONDS));
+        lockProg.release(value);
+        Assert.assertEquals(value, lockProg.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#remove(java.lang.Object)}. A pending remove gets the released resource ahead of waiting
+     * acquirers.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveBeforeWaiter() throws InterruptedException {
+
+        lockProg.open();
+        final Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        final Integer[] acquired = new Integer[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    acquired[0] = lockProg.acquire(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    lockProg.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        new Thread(r).start();
+        Assert.assertTrue(lockProg.remove(value));
+        t.join();
+        Assert.assertNull(acquired[0]);
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireAsync()}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAcquireAsync() throws Exception {
+
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        CompletableFuture<Integer> first = lockProg.acquireAsync();
+        Assert.assertEquals(value, first.getNow(null));
+        CompletableFuture<Integer> second = lockProg.acquireAsync();
+        Assert.assertFalse(second.isDone());
+        lockProg.release(value);
+        Assert.assertEquals(value, second.get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireAsync()}. A cancelled future leaves the queue and the next release goes to the free
+     * queue.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAsyncCancel() throws InterruptedException {
+
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        CompletableFuture<Integer> future = lockProg.acquireAsync();
+        Assert.assertTrue(future.cancel(false));
+        lockProg.release(value);
+        Assert.assertEquals(value, lockProg.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireAsync(long, java.util.concurrent.TimeUnit)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAcquireAsyncTimeout() throws Exception {
+
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        CompletableFuture<Integer> future = lockProg.acquireAsync(10, TimeUnit.MILLISECONDS);
+        Assert.assertNull(future.get(1000, TimeUnit.MILLISECONDS));
+        lockProg.release(value);
+        Assert.assertEquals(value, lockProg.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireAsync()}. Pending futures fail when the pool is closed.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAsyncCloseNow() throws InterruptedException {
+
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(Integer.valueOf(5)));
+        lockProg.acquire();
+        CompletableFuture<Integer> future = lockProg.acquireAsync();
+        lockProg.closeNow();
+        Assert.assertTrue(future.isCompletedExceptionally());
+    }
+
+    /**
+     * Test method for {@link LockProg#removeNow(java.lang.Object)}. A free resource removed immediately is no longer a member of
+     * the pool.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveNowFree() throws InterruptedException {
+
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertTrue(lockProg.removeNow(value));
+        Assert.assertFalse(lockProg.removeNow(value));
+        Assert.assertNull(lockProg.acquire(1000, TimeUnit.NANOSECONDS));
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+    }
+
+    /**
+     * Test method for {@link LockProg#removeNow(java.lang.Object)}. A resource handed to a blocked acquire and removed before the
+     * acquire wakes up is lost to it, the acquire waits for the next one instead of returning null.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveNowAfterHandOff() throws InterruptedException {
+
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(0));
+        for (int i = 0; i < 50; i++) {
+            Integer value = Integer.valueOf(i);
+            Assert.assertEquals(value, lockProg.acquire());
+            final Integer[] acquired = new Integer[1];
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        acquired[0] = lockProg.acquire();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            t.start();
+            while (lockProg.getWaiterCount() == 0) {
+                Thread.sleep(1);
+            }
+            lockProg.release(value);
+            Assert.assertTrue(lockProg.removeNow(value));
+            Assert.assertTrue(lockProg.add(i + 1));
+            t.join(1000);
+            Assert.assertFalse(t.isAlive());
+            // the removed resource if the acquire woke up in time, the next one otherwise
+            if (acquired[0] == null || !acquired[0].equals(value)) {
+                Assert.assertEquals(Integer.valueOf(i + 1), acquired[0]);
+                lockProg.release(i + 1);
+            }
+            Assert.assertEquals(1, lockProg.getIdleCount());
+            Assert.assertEquals(0, lockProg.getInUseCount());
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#remove(java.lang.Object)}. Removing from the middle of a large pool leaves the rest in
+     * order.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveFromLargePool() throws InterruptedException {
+
+        lockProg.open();
+        int size = 20000;
+        for (int i = 0; i < size; i++) {
+            Assert.assertTrue(lockProg.add(Integer.valueOf(i)));
+        }
+        for (int i = 1; i < size; i += 2) {
+            Assert.assertTrue(lockProg.remove(Integer.valueOf(i)));
+        }
+        for (int i = 0; i < size; i += 2) {
+            Assert.assertEquals(Integer.valueOf(i), lockProg.acquire());
+        }
+        Assert.assertNull(lockProg.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#setEventListener(PoolEventListener)}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testEventListener() throws InterruptedException {
+
+        final List<String> events = new ArrayList<String>();
+        lockProg.setEventListener(new PoolEventListener<Integer>() {
+            @Override
+            public void opened() {
+
+                events.add("opened");
+            }
+
+            @Override
+            public void acquired(Integer resource) {
+
+                events.add("acquired " + resource);
+            }
+
+            @Override
+            public void waited(long waitNanos) {
+
+                events.add("waited");
+            }
+
+            @Override
+            public void released(Integer resource) {
+
+                events.add("released " + resource);
+            }
+
+            @Override
+            public void added(Integer resource) {
+
+                events.add("added " + resource);
+            }
+
+            @Override
+            public void removed(Integer resource) {
+
+                events.add("removed " + resource);
+            }
+
+            @Override
+            public void closed() {
+
+                events.add("closed");
+            }
+        });
+        lockProg.open();
+        Integer value = Integer.valueOf(5);
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        Assert.assertNull(lockProg.acquire(1, TimeUnit.MILLISECONDS));
+        lockProg.release(value);
+        Assert.assertTrue(lockProg.remove(value));
+        lockProg.close();
+        Assert.assertEquals(Arrays.asList("opened", "added 5", "acquired 5", "waited", "released 5", "removed 5", "closed"),
+                events);
+    }
+
+    /**
+     * Test method for {@link LockProg#LockProg(ResourceFactory, int, int)}. Open creates minIdle resources and acquire grows the
+     * pool up to maxTotal.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testFactoryGrowsToMaxTotal() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final List<Integer> destroyed = new ArrayList<Integer>();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(Integer resource) {
+
+                destroyed.add(resource);
+            }
+        }, 1, 3);
+        pool.open();
+        Assert.assertEquals(1, created.get());
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(Integer.valueOf(1), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(2), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(3), pool.acquire(1, TimeUnit.MILLISECONDS));
+        Assert.assertNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, created.get());
+        pool.release(2);
+        Assert.assertEquals(Integer.valueOf(2), pool.acquire());
+        Assert.assertTrue(pool.removeNow(2));
+        Assert.assertEquals(Integer.valueOf(4), pool.acquire());
+        pool.release(1);
+        pool.release(3);
+        pool.release(4);
+        pool.close();
+        Assert.assertEquals(Arrays.asList(1, 3, 4), destroyed);
+    }
+
+    /**
+     * A slow creation runs without the pool lock, other acquirers are served in the meantime.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testFactoryCreatesOutsideLock() throws InterruptedException {
+
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                creating.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return 1;
+            }
+        }, 0, 2);
+        pool.open();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    pool.acquire();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(creating.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(pool.add(5));
+        Assert.assertEquals(Integer.valueOf(5), pool.acquire(1, TimeUnit.SECONDS));
+        Assert.assertNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+        proceed.countDown();
+        t.join(1000);
+        Assert.assertEquals(2, pool.getInUseCount());
+    }
+
+    /**
+     * A failed creation is reported to the acquirer and gives its room back, to blocked and asynchronous acquirers alike.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testFactoryFailure() throws Exception {
+
+        final AtomicInteger calls = new AtomicInteger();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                int call = calls.incrementAndGet();
+                if (call % 2 == 1) {
+                    throw new IllegalArgumentException("failed " + call);
+                }
+                return call;
+            }
+        }, 0, 1);
+        pool.open();
+        try {
+            pool.acquire();
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("failed 1", e.getMessage());
+        }
+        Assert.assertEquals(Integer.valueOf(2), pool.acquire());
+        pool.removeNow(2);
+        try {
+            pool.acquireAsync().get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("failed 3", e.getCause().getMessage());
+        }
+        Assert.assertEquals(Integer.valueOf(4), pool.acquireAsync().get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test method for {@link LockProg#setCreationExecutor(Executor)}. The creation for an asynchronous acquire runs on the set
+     * executor.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCreationExecutor() throws Exception {
+
+        final AtomicInteger created = new AtomicInteger();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+        }, 0, 2);
+        final AtomicInteger tasks = new AtomicInteger();
+        final ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            pool.setCreationExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+
+                    tasks.incrementAndGet();
+                    service.execute(command);
+                }
+            });
+            pool.open();
+            Assert.assertEquals(Integer.valueOf(1), pool.acquireAsync().get(1, TimeUnit.SECONDS));
+            Assert.assertEquals(1, tasks.get());
+            pool.release(1);
+            // served from the free queue, nothing to create
+            Assert.assertEquals(Integer.valueOf(1), pool.acquireAsync().get(1, TimeUnit.SECONDS));
+            Assert.assertEquals(1, tasks.get());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#closeNow()}. A factory-backed pool destroys the acquired resources with the free ones.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCloseNowDestroysAcquired() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final List<Integer> destroyed = new ArrayList<Integer>();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(Integer resource) {
+
+                destroyed.add(resource);
+            }
+        }, 0, 3);
+        pool.open();
+        Assert.assertEquals(Integer.valueOf(1), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(2), pool.acquire());
+        pool.release(2);
+        pool.closeNow();
+        Collections.sort(destroyed);
+        Assert.assertEquals(Arrays.asList(1, 2), destroyed);
+        try {
+            pool.release(1);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Not open", e.getMessage());
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#setIdleTimeout(long, TimeUnit)}. Idle resources are evicted and destroyed down to minIdle.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger destroyed = new AtomicInteger();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(Integer resource) {
+
+                destroyed.incrementAndGet();
+            }
+        }, 1, 3);
+        pool.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        pool.open();
+        Integer first = pool.acquire();
+        Integer second = pool.acquire();
+        Integer third = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        Assert.assertEquals(3, pool.getIdleCount());
+        for (int i = 0; i < 100 && destroyed.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, destroyed.get());
+        Thread.sleep(100);
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(3, created.get());
+        Integer survivor = pool.acquire();
+        pool.release(survivor);
+        pool.close();
+    }
+
+    /**
+     * Test method for {@link LockProg#setMaxLifetime(long, TimeUnit)}. The reaper leaves destroying an evicted resource and
+     * creating its replacement to the creation executor.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testReaperHandsOffFactoryCalls() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final List<String> threads = new ArrayList<String>();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                synchronized (threads) {
+                    threads.add(Thread.currentThread().getName());
+                }
+                return created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(Integer resource) {
+
+                synchronized (threads) {
+                    threads.add(Thread.currentThread().getName());
+                }
+            }
+        }, 1, 1);
+        ExecutorService service = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+
+                return new Thread(r, "creator");
+            }
+        });
+        try {
+            pool.setCreationExecutor(service);
+            pool.setMaxLifetime(30, TimeUnit.MILLISECONDS);
+            pool.open();
+            for (int i = 0; i < 100 && created.get() < 2; i++) {
+                Thread.sleep(10);
+            }
+            pool.close();
+        } finally {
+            service.shutdown();
+        }
+        synchronized (threads) {
+            // the create made by open, then the destroy and create of the reaper tick
+            Assert.assertEquals(Arrays.asList("creator", "creator"), threads.subList(1, 3));
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#setMaxLifetime(long, TimeUnit)}. A resource past its lifetime is evicted when free and
+     * dropped on release when acquired.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testMaxLifetime() throws InterruptedException {
+
+        lockProg.setMaxLifetime(50, TimeUnit.MILLISECONDS);
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertTrue(lockProg.add(2));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        for (int i = 0; i < 100 && lockProg.getIdleCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, lockProg.getIdleCount());
+        Assert.assertFalse(lockProg.remove(2));
+        lockProg.release(1);
+        Assert.assertFalse(lockProg.remove(1));
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+    }
+
+    /**
+     * Test method for {@link LockProg#setValidateOnReturn(Executor)}. A released resource stays acquired until the executor
+     * validated it, and is dropped if it fails.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testValidateOnReturn() throws InterruptedException {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        lockProg.setValidator(new ResourceValidator<Integer>() {
+            @Override
+            public boolean validate(Integer resource) {
+
+                return resource != 2;
+            }
+        });
+        lockProg.setValidateOnReturn(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+
+                tasks.add(command);
+            }
+        });
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertTrue(lockProg.add(2));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        Assert.assertEquals(Integer.valueOf(2), lockProg.acquire());
+        lockProg.release(1);
+        lockProg.release(2);
+        lockProg.release(2);
+        Assert.assertEquals(2, tasks.size());
+        Assert.assertEquals(2, lockProg.getInUseCount());
+        Assert.assertEquals(0, lockProg.getIdleCount());
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        Assert.assertEquals(0, lockProg.getInUseCount());
+        Assert.assertEquals(1, lockProg.getIdleCount());
+        Assert.assertFalse(lockProg.remove(2));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+    }
+
+    /**
+     * Test method for {@link LockProg#setValidateOnBorrow(long, TimeUnit)}. A resource that fails is dropped and acquire moves on
+     * to the next, a resource validated within the window is not validated again.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testValidateOnBorrow() throws InterruptedException {
+
+        final AtomicInteger calls = new AtomicInteger();
+        lockProg.setValidator(new ResourceValidator<Integer>() {
+            @Override
+            public boolean validate(Integer resource) {
+
+                calls.incrementAndGet();
+                return resource != 1;
+            }
+        });
+        lockProg.setValidateOnBorrow(0, TimeUnit.MILLISECONDS);
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertTrue(lockProg.add(2));
+        Assert.assertEquals(Integer.valueOf(2), lockProg.acquire());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertFalse(lockProg.remove(1));
+        lockProg.setValidateOnBorrow(1, TimeUnit.HOURS);
+        lockProg.release(2);
+        Assert.assertEquals(Integer.valueOf(2), lockProg.acquire(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    /**
+     * Test method for {@link LockProg#setLeakDetection(long, TimeUnit, int)}. A resource held past the threshold is reported once,
+     * with the stack of its acquire, a resource released in time is not.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+
+        final List<Integer> leaked = new ArrayList<Integer>();
+        final List<Throwable> traces = new ArrayList<Throwable>();
+        lockProg.setEventListener(new PoolEventListener<Integer>() {
+            @Override
+            public void leakSuspected(Integer resource, long holdNanos, Throwable acquiredAt) {
+
+                leaked.add(resource);
+                traces.add(acquiredAt);
+            }
+        });
+        lockProg.setLeakDetection(20, TimeUnit.MILLISECONDS, 1);
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertTrue(lockProg.add(2));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        Assert.assertEquals(Integer.valueOf(2), lockProg.acquire());
+        lockProg.release(2);
+        Thread.sleep(200);
+        // the listener runs under the pool lock, taking it makes the reports visible
+        Assert.assertEquals(1, lockProg.getInUseCount());
+        Assert.assertEquals(Arrays.asList(1), leaked);
+        Assert.assertEquals("testLeakDetection", traces.get(0).getStackTrace()[3].getMethodName());
+    }
+
+    /**
+     * Test method for {@link LockProg#setLeakDetection(long, TimeUnit, int)}. Set on an open pool it takes effect when the pool
+     * opens again.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testLeakDetectionFromNextOpen() throws InterruptedException {
+
+        final List<Integer> leaked = new ArrayList<Integer>();
+        lockProg.setEventListener(new PoolEventListener<Integer>() {
+            @Override
+            public void leakSuspected(Integer resource, long holdNanos, Throwable acquiredAt) {
+
+                leaked.add(resource);
+            }
+        });
+        lockProg.open();
+        lockProg.setLeakDetection(10, TimeUnit.MILLISECONDS, 1);
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        Thread.sleep(50);
+        lockProg.closeNow();
+        Assert.assertTrue(leaked.isEmpty());
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(1));
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        Thread.sleep(100);
+        // the listener runs under the pool lock, taking it makes the reports visible
+        Assert.assertEquals(1, lockProg.getInUseCount());
+        Assert.assertEquals(Arrays.asList(1), leaked);
+    }
+
+    /**
+     * Test method for {@link LockProg#acquire(int)}. A released resource goes to the waiter of higher priority, unless the other
+     * waiter arrived more than the aging step earlier.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquirePriority() throws InterruptedException {
+
+        Assert.assertEquals(Arrays.asList("high", "low"), servedOrder(TimeUnit.SECONDS.toNanos(10)));
+        lockProg = new LockProg<Integer>();
+        Assert.assertEquals(Arrays.asList("low", "high"), servedOrder(1L));
+    }
+
+    /**
+     * Parks a low priority then a high priority acquirer on a pool with one acquired resource, releases it twice and returns the
+     * order they were served in.
+     */
+    private List<String> servedOrder(long agingNanos) throws InterruptedException {
+
+        final List<String> served = new ArrayList<String>();
+        lockProg.setAging(agingNanos, TimeUnit.NANOSECONDS);
+        lockProg.open();
+        final Integer value = 5;
+        Assert.assertTrue(lockProg.add(value));
+        Assert.assertEquals(value, lockProg.acquire());
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int priority = i * 100;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        Integer resource = lockProg.acquire(priority, 5, TimeUnit.SECONDS);
+                        synchronized (served) {
+                            served.add(priority == 0 ? "low" : "high");
+                        }
+                        lockProg.release(resource);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+            while (lockProg.getWaiterCount() <= i) {
+                Thread.sleep(1);
+            }
+        }
+        lockProg.release(value);
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+        synchronized (served) {
+            return served;
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#setWaitStrategy(WaitStrategy)}. Every strategy hands each resource to one thread at a time,
+     * and a spinning acquire still times out and still sees the pool close.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testWaitStrategy() throws InterruptedException {
+
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            lockProg = new LockProg<Integer>();
+            lockProg.setWaitStrategy(strategy);
+            lockProg.open();
+            final int size = 2;
+            final AtomicBoolean[] held = new AtomicBoolean[size];
+            for (int i = 0; i < size; i++) {
+                held[i] = new AtomicBoolean();
+                Assert.assertTrue(lockProg.add(i));
+            }
+            final AtomicInteger errors = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(4);
+            for (int t = 0; t < 4; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        try {
+                            for (int i = 0; i < 2000; i++) {
+                                Integer resource = lockProg.acquire();
+                                if (!held[resource].compareAndSet(false, true)) {
+                                    errors.incrementAndGet();
+                                }
+                                held[resource].set(false);
+                                lockProg.release(resource);
+                            }
+                        } catch (InterruptedException e) {
+                            errors.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(0, errors.get());
+            Assert.assertFalse(lockProg.acquire().equals(lockProg.acquire()));
+            Assert.assertNull(lockProg.acquire(5, TimeUnit.MILLISECONDS));
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        Thread.sleep(50);
+                        lockProg.closeNow();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            t.start();
+            try {
+                lockProg.acquire();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Not open", e.getMessage());
+            }
+            t.join();
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireLease()}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireLease() throws InterruptedException {
+
+        lockProg.open();
+        Integer value = 5;
+        Assert.assertTrue(lockProg.add(value));
+        Lease<Integer> first;
+        try (Lease<Integer> lease = lockProg.acquireLease()) {
+            first = lease;
+            Assert.assertEquals(value, lease.get());
+            Assert.assertEquals(1, lockProg.getInUseCount());
+            Assert.assertNull(lockProg.acquireLease(1, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertEquals(0, lockProg.getInUseCount());
+        Assert.assertFalse(first.isOpen());
+        try {
+            first.get();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Lease closed", e.getMessage());
+        }
+        Lease<Integer> second = lockProg.acquireLease();
+        Assert.assertTrue(second.generation() != first.generation());
+        Assert.assertEquals(value, second.get());
+        // a stale lease neither reads nor releases the resource of the next holder
+        Assert.assertFalse(first.isOpen());
+        try {
+            first.get();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Lease closed", e.getMessage());
+        }
+        try {
+            first.close();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Lease closed", e.getMessage());
+        }
+        Assert.assertTrue(second.isOpen());
+        Assert.assertEquals(1, lockProg.getInUseCount());
+        second.close();
+        second.close();
+        Assert.assertEquals(1, lockProg.getIdleCount());
+        // a direct release ends the lease too
+        Lease<Integer> third = lockProg.acquireLease();
+        lockProg.release(third.get());
+        Assert.assertFalse(third.isOpen());
+        third.close();
+        Assert.assertEquals(value, lockProg.acquire());
+        Assert.assertEquals(1, lockProg.getInUseCount());
+    }
+
+    /**
+     * Test method for {@link LockProg#setSelectionPolicy(SelectionPolicy)}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testSelectionPolicy() throws InterruptedException {
+
+        for (SelectionPolicy policy : SelectionPolicy.values()) {
+            lockProg = new LockProg<Integer>();
+            lockProg.setSelectionPolicy(policy);
+            lockProg.open();
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(lockProg.add(i));
+            }
+            Integer first = lockProg.acquire();
+            lockProg.release(first);
+            Integer second = lockProg.acquire();
+            lockProg.release(second);
+            if (policy == SelectionPolicy.LIFO) {
+                Assert.assertEquals(Integer.valueOf(2), first);
+                Assert.assertEquals(first, second);
+            } else {
+                Assert.assertEquals(Integer.valueOf(0), first);
+                Assert.assertEquals(Integer.valueOf(1), second);
+            }
+            lockProg.closeNow();
+        }
+        lockProg = new LockProg<Integer>();
+        lockProg.setSelectionPolicy(SelectionPolicy.LEAST_USED);
+        lockProg.open();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(lockProg.add(i));
+        }
+        Integer held = lockProg.acquire();
+        for (int i = 0; i < 10; i++) {
+            lockProg.release(lockProg.acquire());
+        }
+        lockProg.release(held);
+        Assert.assertEquals(held, lockProg.acquire());
+        Integer other = lockProg.acquire();
+        Assert.assertTrue(!other.equals(held));
+        Assert.assertEquals(1, lockProg.getIdleCount());
+    }
+
+    /**
+     * Test method for {@link LockProg#acquireAll(int, long, TimeUnit)} and {@link LockProg#releaseAll(java.util.Collection)}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAll() throws InterruptedException {
+
+        lockProg.open();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(lockProg.add(i));
+        }
+        final List<Integer> first = lockProg.acquireAll(3);
+        Assert.assertEquals(Arrays.asList(0, 1, 2), first);
+        // all or none
+        Assert.assertNull(lockProg.acquireAll(2, 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, lockProg.getInUseCount());
+        Assert.assertEquals(1, lockProg.getIdleCount());
+        try {
+            lockProg.releaseAll(Arrays.asList(0, 7));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("No such resource in the pool", e.getMessage());
+        }
+        Assert.assertEquals(3, lockProg.getInUseCount());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    lockProg.releaseAll(first);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertEquals(4, lockProg.acquireAll(4, 1000, TimeUnit.MILLISECONDS).size());
+        Assert.assertEquals(0, lockProg.getIdleCount());
+        t.join();
+        try {
+            new LockProg<Integer>(new ResourceFactory<Integer>() {
+                @Override
+                public Integer create() {
+
+                    return 1;
+                }
+            }, 0, 3).acquireAll(4);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // more than the pool can ever hold
+        }
+    }
+
+    /**
+     * A waiting batch holds no resource, single acquirers behind it are served while it waits.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAcquireAllHoldsNothingWhileWaiting() throws Exception {
+
+        // the batch never waits long enough to hold the singles back
+        lockProg.setAging(10, TimeUnit.SECONDS);
+        lockProg.open();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(lockProg.add(i));
+        }
+        Assert.assertEquals(Integer.valueOf(0), lockProg.acquire());
+        Assert.assertEquals(Integer.valueOf(1), lockProg.acquire());
+        final List<List<Integer>> granted = new ArrayList<List<Integer>>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    granted.add(lockProg.acquireAll(3));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        while (lockProg.getWaiterCount() == 0) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(1, lockProg.getIdleCount());
+        Assert.assertEquals(Integer.valueOf(2), lockProg.acquire(500, TimeUnit.MILLISECONDS));
+        // a release goes to the single acquirer queued behind the batch
+        CompletableFuture<Integer> single = lockProg.acquireAsync();
+        lockProg.release(0);
+        Assert.assertEquals(Integer.valueOf(0), single.getNow(null));
+        try {
+            lockProg.acquireAll(4);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("n is more than the pool holds", e.getMessage());
+        }
+        lockProg.release(1);
+        lockProg.release(2);
+        Assert.assertEquals(2, lockProg.getIdleCount());
+        Assert.assertEquals(1, lockProg.getInUseCount());
+        lockProg.release(0);
+        t.join(1000);
+        Assert.assertEquals(1, granted.size());
+        Assert.assertEquals(3, granted.get(0).size());
+        Assert.assertEquals(3, lockProg.getInUseCount());
+        lockProg.releaseAll(granted.get(0));
+        lockProg.close();
+    }
+
+    /**
+     * A batch that waited past the aging step is not starved by single acquirers that keep the pool busy.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAllNotStarvedBySingles() throws InterruptedException {
+
+        lockProg.open();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(lockProg.add(i));
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        while (!stop.get()) {
+                            Integer resource = lockProg.acquire();
+                            Thread.sleep(1);
+                            lockProg.release(resource);
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(20);
+        List<Integer> batch = lockProg.acquireAll(4, 3, TimeUnit.SECONDS);
+        Assert.assertNotNull(batch);
+        Assert.assertEquals(4, lockProg.getInUseCount());
+        lockProg.releaseAll(batch);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join(1000);
+            Assert.assertFalse(thread.isAlive());
+        }
+        Assert.assertEquals(4, lockProg.getIdleCount());
+    }
+
+    /**
+     * Jobs each needing most of the pool at once never deadlock holding part of it each.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAllConcurrent() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+        }, 0, 5);
+        pool.open();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int n = 3 + t % 2;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            List<Integer> batch = i % 2 == 0 ? pool.acquireAll(n) : pool.acquireAll(n, 1, TimeUnit.SECONDS);
+                            if (batch.size() != n) {
+                                errors.incrementAndGet();
+                            }
+                            if (i % 3 == 0) {
+                                pool.releaseAll(batch);
+                            } else {
+                                for (Integer resource : batch) {
+                                    pool.release(resource);
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, errors.get());
+        // batches wait for what they need instead of holding part of it, so the pool may never need all 5
+        Assert.assertTrue(created.get() <= 5);
+        Assert.assertEquals(0, pool.getInUseCount());
+        pool.close();
+    }
+
+    /**
+     * Test method for {@link LockProg#open(PoolSpec)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testOpenPoolSpec() throws Exception {
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                int now = running.incrementAndGet();
+                mostRunning.accumulateAndGet(now, Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                running.decrementAndGet();
+                return created.incrementAndGet();
+            }
+        }, 2, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            long start = System.nanoTime();
+            CompletableFuture<Void> warm = pool.open(new PoolSpec().setInitialSize(8).setParallelism(4).setExecutor(executor));
+            Assert.assertTrue(pool.isOpen());
+            // served by the first creations, long before all 8 are done
+            Assert.assertNotNull(pool.acquire());
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150));
+            Assert.assertFalse(warm.isDone());
+            warm.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(8, created.get());
+            Assert.assertEquals(4, mostRunning.get());
+            Assert.assertEquals(7, pool.getIdleCount());
+            Assert.assertEquals(1, pool.getInUseCount());
+            pool.closeNow();
+        } finally {
+            executor.shutdown();
+        }
+        pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                throw new IllegalArgumentException("down");
+            }
+        }, 0, 4);
+        try {
+            pool.open(new PoolSpec().setInitialSize(2)).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("down", e.getCause().getMessage());
+        }
+        Assert.assertTrue(pool.isOpen());
+        Assert.assertEquals(0, pool.getIdleCount());
+        try {
+            new LockProg<Integer>().open(new PoolSpec().setInitialSize(1));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("No factory", e.getMessage());
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#snapshot(Path, ResourceCodec)} and {@link LockProg#open(Path, ResourceCodec)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotRestore() throws Exception {
+
+        ResourceCodec<String> codec = new ResourceCodec<String>() {
+            @Override
+            public byte[] encode(String resource) {
+
+                return resource.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(ByteBuffer bytes) {
+
+                return StandardCharsets.UTF_8.decode(bytes).toString();
+            }
+        };
+        Path file = Files.createTempFile("pool", ".snapshot");
+        try {
+            LockProg<String> pool = new LockProg<String>();
+            pool.open();
+            for (int i = 0; i < 100000; i++) {
+                Assert.assertTrue(pool.add("host-" + i));
+            }
+            // larger than the write buffer
+            StringBuilder large = new StringBuilder();
+            while (large.length() < 100000) {
+                large.append("large");
+            }
+            Assert.assertTrue(pool.add(large.toString()));
+            String held = pool.acquire();
+            Assert.assertEquals(100001, pool.snapshot(file, codec));
+            pool.closeNow();
+
+            LockProg<String> restored = new LockProg<String>();
+            restored.open(file, codec);
+            Assert.assertEquals(100001, restored.getIdleCount());
+            Assert.assertFalse(restored.add(held));
+            Assert.assertFalse(restored.add("host-99999"));
+            Assert.assertFalse(restored.add(large.toString()));
+            Assert.assertTrue(restored.add("host-100000"));
+            restored.closeNow();
+
+            Files.delete(file);
+            restored = new LockProg<String>();
+            restored.open(file, codec);
+            Assert.assertEquals(0, restored.getIdleCount());
+            restored.closeNow();
+
+            Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            try {
+                new LockProg<String>().open(file, codec);
+                Assert.fail();
+            } catch (java.io.IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Not a pool snapshot"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Test method for {@link LockProg#asPublisher()}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAsPublisher() throws InterruptedException {
+
+        lockProg.open();
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(lockProg.add(i));
+        }
+        final LinkedBlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final Flow.Subscription[] subscription = new Flow.Subscription[1];
+        lockProg.asPublisher().subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(Integer resource) {
+
+                received.add(resource);
+            }
+
+            @Override
+            public void onError(Throwable failure) {
+
+                received.add(failure);
+            }
+
+            @Override
+            public void onComplete() {
+
+                received.add("complete");
+            }
+        });
+        Assert.assertTrue(received.isEmpty());
+        subscription[0].request(1);
+        Assert.assertEquals(0, received.poll());
+        subscription[0].request(2);
+        Assert.assertEquals(1, received.poll());
+        // the third waits for a release, without a thread
+        Assert.assertNull(received.poll(20, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, lockProg.getWaiterCount());
+        lockProg.release(0);
+        Assert.assertEquals(0, received.poll(1, TimeUnit.SECONDS));
+        // demand met, a release stays free
+        lockProg.release(1);
+        Assert.assertEquals(1, lockProg.getIdleCount());
+        subscription[0].request(2);
+        Assert.assertEquals(1, received.poll());
+        Assert.assertEquals(1, lockProg.getWaiterCount());
+        subscription[0].cancel();
+        Assert.assertEquals(0, lockProg.getWaiterCount());
+        lockProg.release(0);
+        lockProg.release(1);
+        Assert.assertEquals(2, lockProg.getIdleCount());
+        Assert.assertTrue(received.isEmpty());
+
+        // the pool closing fails the subscription
+        lockProg.asPublisher().subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+
+                s.request(3);
+            }
+
+            @Override
+            public void onNext(Integer resource) {
+
+                received.add(resource);
+            }
+
+            @Override
+            public void onError(Throwable failure) {
+
+                received.add(failure);
+            }
+
+            @Override
+            public void onComplete() {
+
+                received.add("complete");
+            }
+        });
+        Assert.assertEquals(2, received.size());
+        received.clear();
+        lockProg.closeNow();
+        Assert.assertTrue(received.poll(1, TimeUnit.SECONDS) instanceof IllegalStateException);
+    }
+
+    /**
+     * Test method for {@link LockProg#setMaxWaiters(int)} and {@link LockProg#setDeadlineAdmission(boolean)}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAdmissionControl() throws InterruptedException {
+
+        PoolMetrics metrics = new PoolMetrics(lockProg);
+        lockProg.setEventListener(metrics);
+        lockProg.setMaxWaiters(1);
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(0));
+        Assert.assertEquals(Integer.valueOf(0), lockProg.acquire());
+        CompletableFuture<Integer> first = lockProg.acquireAsync();
+        // the queue is full, every kind of acquire is turned away at once
+        Assert.assertNull(lockProg.acquire(1, TimeUnit.SECONDS));
+        try {
+            lockProg.acquire();
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            Assert.assertEquals("Too many waiters", e.getMessage());
+        }
+        Assert.assertTrue(lockProg.acquireAsync().isCompletedExceptionally());
+        Assert.assertEquals(3L, metrics.snapshot().getRejectedCount());
+        Assert.assertEquals(1, lockProg.getWaiterCount());
+        lockProg.release(0);
+        Assert.assertEquals(Integer.valueOf(0), first.getNow(null));
+
+        // releases to waiters 30 milliseconds apart
+        lockProg.setMaxWaiters(Integer.MAX_VALUE);
+        lockProg.setDeadlineAdmission(true);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    for (int i = 0; i < 5; i++) {
+                        Thread.sleep(30);
+                        lockProg.release(0);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(Integer.valueOf(0), lockProg.acquire());
+        }
+        // behind one waiter, a wait of about 60 milliseconds does not fit in 5
+        CompletableFuture<Integer> second = lockProg.acquireAsync();
+        Assert.assertNull(lockProg.acquire(5, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(4L, metrics.snapshot().getRejectedCount());
+        Assert.assertEquals(Integer.valueOf(0), lockProg.acquire(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Integer.valueOf(0), second.getNow(null));
+        Assert.assertEquals(4L, metrics.snapshot().getRejectedCount());
+        t.join();
+    }
+
+    /**
+     * An estimate from a slow spell does not keep rejecting acquires once resources are released quickly again.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAdmissionRecovers() throws InterruptedException {
+
+        PoolMetrics metrics = new PoolMetrics(lockProg);
+        lockProg.setEventListener(metrics);
+        lockProg.setDeadlineAdmission(true);
+        lockProg.open();
+        Assert.assertTrue(lockProg.add(0));
+        Assert.assertEquals(Integer.valueOf(0), lockProg.acquire());
+        // releases to waiters 100 milliseconds apart
+        Thread slow = releaseLater(3, 100);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(Integer.valueOf(0), lockProg.acquire());
+        }
+        slow.join();
+        // then released after about a millisecond, well within a 50 millisecond timeout
+        for (int i = 0; i < 20; i++) {
+            Thread fast = releaseLater(1, 1);
+            Assert.assertEquals(Integer.valueOf(0), lockProg.acquire(50, TimeUnit.MILLISECONDS));
+            fast.join();
+        }
+        Assert.assertEquals(0L, metrics.snapshot().getRejectedCount());
+    }
+
+    private Thread releaseLater(final int times, final long millis) {
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    for (int i = 0; i < times; i++) {
+                        Thread.sleep(millis);
+                        lockProg.release(0);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * Test method for {@link LockProg#setMaxTotal(int)}.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testSetMaxTotal() throws InterruptedException {
+
+        final AtomicInteger created = new AtomicInteger();
+        final List<Integer> destroyed = new ArrayList<Integer>();
+        final LockProg<Integer> pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+
+            @Override
+            public void destroy(Integer resource) {
+
+                destroyed.add(resource);
+            }
+        }, 0, 2);
+        pool.open();
+        Assert.assertEquals(Integer.valueOf(1), pool.acquire());
+        Assert.assertEquals(Integer.valueOf(2), pool.acquire());
+        final Integer[] acquired = new Integer[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    acquired[0] = pool.acquire();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        while (pool.getWaiterCount() == 0) {
+            Thread.sleep(1);
+        }
+        // raising it lets the waiter create
+        pool.setMaxTotal(3);
+        t.join(1000);
+        Assert.assertEquals(Integer.valueOf(3), acquired[0]);
+        Assert.assertEquals(3, pool.getMaxTotal());
+        // lowering it destroys the free resource at once and an acquired one once released
+        pool.release(3);
+        pool.setMaxTotal(1);
+        Assert.assertEquals(Arrays.asList(3), destroyed);
+        pool.release(2);
+        Assert.assertEquals(Arrays.asList(3, 2), destroyed);
+        pool.release(1);
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(Integer.valueOf(1), pool.acquire());
+        Assert.assertNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, created.get());
+        pool.release(1);
+        pool.close();
+        Assert.assertEquals(Arrays.asList(3, 2, 1), destroyed);
+    }
 }
@@ -0,0 +1,93 @@
+/**
+ * The contract shared by the pool engines. Resources are added to an open pool, acquired by one thread at a time and released
+ * back when the caller is done with them.
+ *
+ * @param <R>
+ */
+public interface Pool<R> {
+
+    /**
+     * Opens the pool. No resource are allowed to be acquired unless the poll is open.
+     */
+    void open();
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    boolean isOpen();
+
+    /**
+     * This blocks until all acquired resources are released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    void close() throws InterruptedException;
+
+    /**
+     * This closes the pool immediately without waiting for all acquired resources to be released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    void closeNow() throws InterruptedException;
+
+    /**
+     * Blocks until a resource is available.
+     *
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    R acquire() throws InterruptedException;
+
+    /**
+     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval, null is
+     * returned.
+     *
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    R acquire(long timeout, java.util.concurrent.TimeUnit timeUnit) throws InterruptedException;
+
+    /**
+     * Release the resource back to the pool.
+     *
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    void release(R resource);
+
+    /**
+     * Add the resource to the pool.
+     *
+     * @param resource the resource to be added to the pool
+     * @return <code>true</code> if the resource was added to the pool <code>false</code> if the resource is already in the pool
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    boolean add(R resource);
+
+    /**
+     * Remove the resource from the pool. This method blocks if the resource that is being removed is currently in use, until that
+     * resource has been released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    boolean remove(R resource) throws InterruptedException;
+
+    /**
+     * Remove the resource from the pool immediately without waiting for it to be released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    boolean removeNow(R resource) throws InterruptedException;
+}
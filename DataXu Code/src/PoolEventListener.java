@@ -0,0 +1,272 @@
+import java.io.PrintStream;
+
+/**
+ * Receives the events of a pool, for tracing or metrics. Every method does nothing by default, so a listener only overrides
+ * the events it cares about.<br>
+ * The pool calls the listener with its lock held. Implementations must be quick, must not block and must not call back into
+ * the pool.
+ *
+ * @param <R>
+ */
+public interface PoolEventListener<R> {
+
+    /**
+     * The pool was opened.
+     */
+    default void opened() {
+
+    }
+
+    /**
+     * A resource was acquired, either straight from the free queue or handed to a waiter.
+     *
+     * @param resource the resource acquired
+     */
+    default void acquired(R resource) {
+
+    }
+
+    /**
+     * An acquire had to wait because no resource was free. Called when the wait ends, whether a resource was handed over or the
+     * wait timed out.
+     *
+     * @param waitNanos how long the caller waited, in nanoseconds
+     */
+    default void waited(long waitNanos) {
+
+    }
+
+    /**
+     * An acquire with a timeout gave up. Called after {@link #waited(long)} for the same wait.
+     *
+     * @param waitNanos how long the caller waited, in nanoseconds
+     */
+    default void timedOut(long waitNanos) {
+
+    }
+
+    /**
+     * An acquire was turned away instead of waiting, because the waiter queue was full or because its estimated wait exceeded
+     * its timeout.
+     *
+     * @param waiters how many acquires were waiting
+     * @param estimatedWaitNanos the estimated wait, in nanoseconds, 0 before the pool has an estimate
+     */
+    default void rejected(int waiters, long estimatedWaitNanos) {
+
+    }
+
+    /**
+     * A resource was released back to the pool.
+     *
+     * @param resource the resource released
+     */
+    default void released(R resource) {
+
+    }
+
+    /**
+     * How long a released resource was held. Called after {@link #released(Object)}, and only for resources acquired while a
+     * listener was registered.
+     *
+     * @param resource the resource released
+     * @param holdNanos how long the resource was held, in nanoseconds
+     */
+    default void held(R resource, long holdNanos) {
+
+    }
+
+    /**
+     * A resource was added to the pool.
+     *
+     * @param resource the resource added
+     */
+    default void added(R resource) {
+
+    }
+
+    /**
+     * A resource was removed from the pool.
+     *
+     * @param resource the resource removed
+     */
+    default void removed(R resource) {
+
+    }
+
+    /**
+     * A sampled resource has been held longer than the leak threshold and may never be released. Called once per lease.
+     *
+     * @param resource the resource still held
+     * @param holdNanos how long the resource has been held, in nanoseconds
+     * @param acquiredAt the stack of the acquire that took the resource
+     */
+    default void leakSuspected(R resource, long holdNanos, Throwable acquiredAt) {
+
+    }
+
+    /**
+     * The pool was closed.
+     */
+    default void closed() {
+
+    }
+
+    /**
+     * @param first the listener told first
+     * @param second the listener told second
+     * @return a listener passing every event to both listeners
+     */
+    static <R> PoolEventListener<R> both(final PoolEventListener<? super R> first, final PoolEventListener<? super R> second) {
+
+        return new PoolEventListener<R>() {
+            @Override
+            public void opened() {
+
+                first.opened();
+                second.opened();
+            }
+
+            @Override
+            public void acquired(R resource) {
+
+                first.acquired(resource);
+                second.acquired(resource);
+            }
+
+            @Override
+            public void waited(long waitNanos) {
+
+                first.waited(waitNanos);
+                second.waited(waitNanos);
+            }
+
+            @Override
+            public void timedOut(long waitNanos) {
+
+                first.timedOut(waitNanos);
+                second.timedOut(waitNanos);
+            }
+
+            @Override
+            public void rejected(int waiters, long estimatedWaitNanos) {
+
+                first.rejected(waiters, estimatedWaitNanos);
+                second.rejected(waiters, estimatedWaitNanos);
+            }
+
+            @Override
+            public void released(R resource) {
+
+                first.released(resource);
+                second.released(resource);
+            }
+
+            @Override
+            public void held(R resource, long holdNanos) {
+
+                first.held(resource, holdNanos);
+                second.held(resource, holdNanos);
+            }
+
+            @Override
+            public void added(R resource) {
+
+                first.added(resource);
+                second.added(resource);
+            }
+
+            @Override
+            public void removed(R resource) {
+
+                first.removed(resource);
+                second.removed(resource);
+            }
+
+            @Override
+            public void leakSuspected(R resource, long holdNanos, Throwable acquiredAt) {
+
+                first.leakSuspected(resource, holdNanos, acquiredAt);
+                second.leakSuspected(resource, holdNanos, acquiredAt);
+            }
+
+            @Override
+            public void closed() {
+
+                first.closed();
+                second.closed();
+            }
+        };
+    }
+
+    /**
+     * @param out where to print
+     * @return a listener printing one line per event with the name of the calling thread
+     */
+    static <R> PoolEventListener<R> tracing(final PrintStream out) {
+
+        return new PoolEventListener<R>() {
+            @Override
+            public void opened() {
+
+                out.println("Open, with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void acquired(R resource) {
+
+                out.println("Acquire, resource: " + resource + " with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void waited(long waitNanos) {
+
+                out.println("Waited " + waitNanos + "ns, with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void timedOut(long waitNanos) {
+
+                out.println("Timed out after " + waitNanos + "ns, with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void rejected(int waiters, long estimatedWaitNanos) {
+
+                out.println("Rejected with " + waiters + " waiting, estimated wait " + estimatedWaitNanos + "ns, with thread: "
+                        + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void released(R resource) {
+
+                out.println("Release, resource: " + resource + " with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void added(R resource) {
+
+                out.println("Add, resource: " + resource + " with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void removed(R resource) {
+
+                out.println("Remove, resource: " + resource + " with thread: " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void leakSuspected(R resource, long holdNanos, Throwable acquiredAt) {
+
+                out.println("Leak suspected, resource: " + resource + " held for " + holdNanos + "ns, acquired:");
+                acquiredAt.printStackTrace(out);
+            }
+
+            @Override
+            public void closed() {
+
+                out.println("Close, with thread: " + Thread.currentThread().getName());
+            }
+        };
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link LockProg}, recorded from its events. Register it with {@link LockProg#setEventListener} (combined with
+ * {@link PoolEventListener#both} to keep another listener) and read it with {@link #snapshot()}.<br>
+ * Design Decisions<br>
+ * -Acquire wait and hold times go into {@link LatencyHistogram}s, counts into LongAdders. Nothing here takes a lock or
+ * allocates while recording.<br>
+ * -In use, idle and waiter counts are not tracked from events, they are read from the pool when a snapshot is taken.<br>
+ * -Rates come from two snapshots, so any reporting interval works without the metrics knowing about it.<br>
+ */
+public class PoolMetrics implements PoolEventListener<Object> {
+    private final LockProg<?> pool;
+
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    private final LatencyHistogram holdTimes = new LatencyHistogram();
+
+    private final LongAdder acquires = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param pool the pool whose in use, idle and waiter counts are read by {@link #snapshot()}
+     */
+    public PoolMetrics(LockProg<?> pool) {
+
+        this.pool = pool;
+    }
+
+    @Override
+    public void acquired(Object resource) {
+
+        acquires.increment();
+    }
+
+    @Override
+    public void waited(long waitNanos) {
+
+        waitTimes.record(waitNanos);
+    }
+
+    @Override
+    public void timedOut(long waitNanos) {
+
+        timeouts.increment();
+    }
+
+    @Override
+    public void rejected(int waiters, long estimatedWaitNanos) {
+
+        rejections.increment();
+    }
+
+    @Override
+    public void held(Object resource, long holdNanos) {
+
+        holdTimes.record(holdNanos);
+    }
+
+    /**
+     * @return the metrics recorded so far and the current state of the pool
+     */
+    public Snapshot snapshot() {
+
+        return new Snapshot(System.nanoTime(), acquires.sum(), timeouts.sum(), rejections.sum(), waitTimes.snapshot(),
+                holdTimes.snapshot(), pool.getInUseCount(), pool.getIdleCount(), pool.getWaiterCount());
+    }
+
+    /**
+     * Metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final long timeNanos;
+
+        private final long acquireCount;
+
+        private final long timeoutCount;
+
+        private final long rejectedCount;
+
+        private final LatencyHistogram.Snapshot waitTimes;
+
+        private final LatencyHistogram.Snapshot holdTimes;
+
+        private final int inUse;
+
+        private final int idle;
+
+        private final int waiters;
+
+        Snapshot(long timeNanos, long acquireCount, long timeoutCount, long rejectedCount, LatencyHistogram.Snapshot waitTimes,
+                LatencyHistogram.Snapshot holdTimes, int inUse, int idle, int waiters) {
+
+            this.timeNanos = timeNanos;
+            this.acquireCount = acquireCount;
+            this.timeoutCount = timeoutCount;
+            this.rejectedCount = rejectedCount;
+            this.waitTimes = waitTimes;
+            this.holdTimes = holdTimes;
+            this.inUse = inUse;
+            this.idle = idle;
+            this.waiters = waiters;
+        }
+
+        /**
+         * @return the number of resources acquired since the metrics were registered
+         */
+        public long getAcquireCount() {
+
+            return acquireCount;
+        }
+
+        /**
+         * @return the number of timed acquires that gave up since the metrics were registered
+         */
+        public long getTimeoutCount() {
+
+            return timeoutCount;
+        }
+
+        /**
+         * @return the number of acquires turned away by admission control since the metrics were registered
+         */
+        public long getRejectedCount() {
+
+            return rejectedCount;
+        }
+
+        /**
+         * @return how long acquires waited, in nanoseconds. Acquires served without waiting are not recorded.
+         */
+        public LatencyHistogram.Snapshot getWaitTimes() {
+
+            return waitTimes;
+        }
+
+        /**
+         * @return how long resources were held before being released, in nanoseconds
+         */
+        public LatencyHistogram.Snapshot getHoldTimes() {
+
+            return holdTimes;
+        }
+
+        /**
+         * @return the number of resources acquired when the snapshot was taken
+         */
+        public int getInUse() {
+
+            return inUse;
+        }
+
+        /**
+         * @return the number of free resources when the snapshot was taken
+         */
+        public int getIdle() {
+
+            return idle;
+        }
+
+        /**
+         * @return the number of acquires waiting when the snapshot was taken
+         */
+        public int getWaiters() {
+
+            return waiters;
+        }
+
+        /**
+         * @return the fraction of resources in use, between 0 and 1
+         */
+        public double getUtilization() {
+
+            int total = inUse + idle;
+            return total == 0 ? 0.0 : (double) inUse / total;
+        }
+
+        /**
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return acquires per second between the two snapshots
+         */
+        public double acquireRate(Snapshot earlier) {
+
+            return perSecond(acquireCount - earlier.acquireCount, earlier);
+        }
+
+        /**
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return timeouts per second between the two snapshots
+         */
+        public double timeoutRate(Snapshot earlier) {
+
+            return perSecond(timeoutCount - earlier.timeoutCount, earlier);
+        }
+
+        /**
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return rejections per second between the two snapshots
+         */
+        public double rejectionRate(Snapshot earlier) {
+
+            return perSecond(rejectedCount - earlier.rejectedCount, earlier);
+        }
+
+        /**
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return the wait times recorded between the two snapshots
+         */
+        public LatencyHistogram.Snapshot waitTimesSince(Snapshot earlier) {
+
+            return waitTimes.minus(earlier.waitTimes);
+        }
+
+        private double perSecond(long count, Snapshot earlier) {
+
+            long elapsed = timeNanos - earlier.timeNanos;
+            return elapsed <= 0L ? 0.0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PoolMetrics} and {@link LatencyHistogram}.
+ */
+public class PoolMetricsTest {
+
+    /**
+     * Every value lands in a bucket whose upper bound is at most 12.5% above it.
+     */
+    @Test
+    public void testHistogramPrecision() {
+
+        long[] values = { 0L, 1L, 7L, 8L, 15L, 16L, 17L, 1000L, 123456789L, Long.MAX_VALUE };
+        for (long value : values) {
+            long bound = LatencyHistogram.upperBound(LatencyHistogram.index(value));
+            Assert.assertTrue(bound >= value);
+            Assert.assertTrue(bound - value <= value / 8);
+        }
+    }
+
+    /**
+     * Test method for {@link LatencyHistogram.Snapshot#percentile(double)}.
+     */
+    @Test
+    public void testHistogramPercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        Assert.assertEquals(100L, first.count());
+        Assert.assertEquals(51L, first.percentile(50));
+        Assert.assertEquals(103L, first.percentile(99));
+        histogram.record(5000L);
+        LatencyHistogram.Snapshot interval = histogram.snapshot().minus(first);
+        Assert.assertEquals(1L, interval.count());
+        Assert.assertTrue(interval.percentile(50) >= 5000L);
+    }
+
+    /**
+     * Test method for {@link PoolMetrics#snapshot()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testPoolMetrics() throws InterruptedException {
+
+        LockProg<Integer> pool = new LockProg<Integer>();
+        PoolMetrics metrics = new PoolMetrics(pool);
+        pool.setEventListener(metrics);
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        Assert.assertTrue(pool.add(6));
+        Integer value = pool.acquire();
+        Assert.assertNotNull(pool.acquire());
+        Assert.assertNull(pool.acquire(1, TimeUnit.MILLISECONDS));
+        pool.release(value);
+
+        PoolMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(2L, snapshot.getAcquireCount());
+        Assert.assertEquals(1L, snapshot.getTimeoutCount());
+        Assert.assertEquals(1L, snapshot.getWaitTimes().count());
+        Assert.assertTrue(snapshot.getWaitTimes().percentile(50) >= TimeUnit.MILLISECONDS.toNanos(1));
+        Assert.assertEquals(1L, snapshot.getHoldTimes().count());
+        Assert.assertEquals(1, snapshot.getInUse());
+        Assert.assertEquals(1, snapshot.getIdle());
+        Assert.assertEquals(0, snapshot.getWaiters());
+        Assert.assertEquals(0.5, snapshot.getUtilization(), 0.0);
+    }
+}
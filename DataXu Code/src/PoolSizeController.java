@@ -0,0 +1,187 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sizes a factory-backed {@link LockProg} from its acquire wait times, holding its maxTotal at the smallest size whose 99th
+ * percentile wait meets a target. Reads a {@link PoolMetrics} registered on the pool once per period and moves maxTotal between
+ * a floor and a ceiling.<br>
+ * Design Decisions<br>
+ * -AIMD, the rule of adaptive concurrency limits turned around. There the limit grows by one while latency is good and is cut
+ * by a factor when it is not. Here the pool shrinks by one while waits are good and grows by half when they are not, so a
+ * missed target is put right in a period or two and the smallest size is found one resource at a time.<br>
+ * -The percentile is over every acquire of the period, not just those that waited. Acquires served at once count as no wait,
+ * so a pool where one acquire in a thousand waits long still meets the target.<br>
+ * -A rejected acquire misses the target, it would have waited without admission control.<br>
+ * -The pool only shrinks while it has a free resource, and from the number of resources it holds rather than a maxTotal it
+ * never grew to, so every step down destroys a resource.<br>
+ * -Runs on a shared daemon thread. {@link #adjust()} can also be called directly, on any schedule.<br>
+ */
+public class PoolSizeController {
+    private static final double PERCENTILE = 99.0;
+
+    private static final double INCREASE = 1.5;
+
+    private final LockProg<?> pool;
+
+    private final PoolMetrics metrics;
+
+    private final long targetNanos;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    /**
+     * The metrics at the end of the last period, <code>null</code> before the first one.
+     */
+    private PoolMetrics.Snapshot last;
+
+    private ScheduledFuture<?> task;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final class Scheduler {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread thread = new Thread(r, "PoolSizeController");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * @param pool the factory-backed pool to size
+     * @param metrics metrics registered on the pool, see {@link LockProg#setEventListener}
+     * @param targetWait the 99th percentile acquire wait to meet
+     * @param timeUnit the time unit of the {@code targetWait} argument
+     * @param minSize the smallest maxTotal, at least the pool's minIdle
+     * @param maxSize the largest maxTotal
+     */
+    public PoolSizeController(LockProg<?> pool, PoolMetrics metrics, long targetWait, TimeUnit timeUnit, int minSize,
+            int maxSize) {
+
+        if (pool == null || metrics == null) {
+            throw new NullPointerException();
+        }
+        if (targetWait <= 0L) {
+            throw new IllegalArgumentException("targetWait must be positive");
+        }
+        if (minSize <= 0 || minSize < pool.getMinIdle() || minSize > maxSize) {
+            throw new IllegalArgumentException("Need minIdle <= minSize <= maxSize and minSize > 0");
+        }
+        this.pool = pool;
+        this.metrics = metrics;
+        this.targetNanos = timeUnit.toNanos(targetWait);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adjusts the pool once per period on a shared daemon thread.
+     *
+     * @param period the time between adjustments
+     * @param timeUnit the time unit of the {@code period} argument
+     * @throws IllegalStateException if the controller is already started
+     */
+    public void start(long period, TimeUnit timeUnit) {
+
+        if (period <= 0L) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        lock.lock();
+        try {
+            if (task != null) {
+                throw new IllegalStateException("Already started");
+            }
+            last = null;
+            task = Scheduler.EXECUTOR.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+
+                    adjust();
+                }
+            }, 0L, period, timeUnit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the adjustments. The pool keeps the size it has.
+     */
+    public void stop() {
+
+        lock.lock();
+        try {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a period and resizes the pool from the acquires made in it. The first call only starts the first period.
+     *
+     * @return the maxTotal of the pool
+     */
+    public int adjust() {
+
+        lock.lock();
+        try {
+            PoolMetrics.Snapshot now = metrics.snapshot();
+            PoolMetrics.Snapshot earlier = last;
+            last = now;
+            int size = pool.getMaxTotal();
+            if (earlier == null) {
+                return size;
+            }
+            int next;
+            if (missed(now, earlier)) {
+                next = Math.max(size + 1, (int) Math.ceil(size * INCREASE));
+            } else if (now.getIdle() > 0) {
+                next = Math.min(size, now.getInUse() + now.getIdle()) - 1;
+            } else {
+                next = size;
+            }
+            next = Math.max(minSize, Math.min(maxSize, next));
+            if (next != size) {
+                pool.setMaxTotal(next);
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the 99th percentile wait of the period was above the target or an acquire was rejected
+     */
+    private boolean missed(PoolMetrics.Snapshot now, PoolMetrics.Snapshot earlier) {
+
+        if (now.getRejectedCount() > earlier.getRejectedCount()) {
+            return true;
+        }
+        LatencyHistogram.Snapshot waits = now.waitTimesSince(earlier);
+        long total = now.getAcquireCount() - earlier.getAcquireCount() + now.getTimeoutCount() - earlier.getTimeoutCount();
+        long immediate = Math.max(0L, total - waits.count());
+        long rank = (long) Math.ceil(PERCENTILE / 100.0 * total);
+        if (rank <= immediate) {
+            return false;
+        }
+        // the percentile falls among the acquires that waited
+        return waits.percentile((rank - immediate) * 100.0 / waits.count()) > targetNanos;
+    }
+}
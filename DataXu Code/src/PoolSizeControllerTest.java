@@ -0,0 +1,148 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PoolSizeController}.
+ */
+public class PoolSizeControllerTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private LockProg<Integer> pool;
+
+    private PoolMetrics metrics;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        pool = new LockProg<Integer>(new ResourceFactory<Integer>() {
+            @Override
+            public Integer create() {
+
+                return created.incrementAndGet();
+            }
+        }, 0, 4);
+        metrics = new PoolMetrics(pool);
+        pool.setEventListener(metrics);
+        pool.open();
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+
+        if (pool.isOpen()) {
+            pool.closeNow();
+        }
+    }
+
+    /**
+     * Test method for {@link PoolSizeController#adjust()}. A missed target grows the pool by half, periods that meet it shrink it
+     * by one down to the floor.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAdjust() throws InterruptedException {
+
+        PoolSizeController controller = new PoolSizeController(pool, metrics, 1, TimeUnit.MILLISECONDS, 1, 16);
+        Assert.assertEquals(4, controller.adjust());
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), pool.acquire());
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(20);
+                    pool.release(4);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        // one acquire in five waited 20 milliseconds
+        Assert.assertEquals(Integer.valueOf(4), pool.acquire());
+        t.join();
+        Assert.assertEquals(6, controller.adjust());
+        Assert.assertEquals(6, pool.getMaxTotal());
+        Assert.assertEquals(Integer.valueOf(5), pool.acquire());
+        for (int i = 1; i <= 5; i++) {
+            pool.release(i);
+        }
+        // shrinks from the five it holds, not from six
+        Assert.assertEquals(4, controller.adjust());
+        Assert.assertEquals(4, pool.getIdleCount());
+        Assert.assertEquals(3, controller.adjust());
+        Assert.assertEquals(2, controller.adjust());
+        Assert.assertEquals(1, controller.adjust());
+        Assert.assertEquals(1, controller.adjust());
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(5, created.get());
+    }
+
+    /**
+     * A period where most acquires are served at once meets the target even though one waited long.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testPercentileCountsEveryAcquire() throws InterruptedException {
+
+        PoolSizeController controller = new PoolSizeController(pool, metrics, 1, TimeUnit.MILLISECONDS, 1, 16);
+        controller.adjust();
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), pool.acquire());
+        }
+        Assert.assertNull(pool.acquire(5, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 200; i++) {
+            pool.release(4);
+            Assert.assertEquals(Integer.valueOf(4), pool.acquire());
+        }
+        // all four in use, the target met, the size stays
+        Assert.assertEquals(4, controller.adjust());
+    }
+
+    /**
+     * Test method for {@link PoolSizeController#start(long, TimeUnit)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testStart() throws InterruptedException {
+
+        for (int i = 1; i <= 3; i++) {
+            pool.acquire();
+        }
+        for (int i = 1; i <= 3; i++) {
+            pool.release(i);
+        }
+        PoolSizeController controller = new PoolSizeController(pool, metrics, 1, TimeUnit.MILLISECONDS, 2, 16);
+        controller.start(5, TimeUnit.MILLISECONDS);
+        try {
+            controller.start(5, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Already started", e.getMessage());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (pool.getMaxTotal() != 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        controller.stop();
+        Assert.assertEquals(2, pool.getMaxTotal());
+        Assert.assertEquals(2, pool.getIdleCount());
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.Executor;
+
+/**
+ * How {@link LockProg#open(PoolSpec)} warms a factory-backed pool up. Setters return the spec, so one reads as a single
+ * expression.<br>
+ * Design Decisions<br>
+ * -Only the warm-up lives here. The factory and the pool bounds stay constructor arguments of the pool.<br>
+ * -Parallelism bounds the creations running at once whatever executor runs them, so a shared executor can be used without
+ * flooding it or the backend the resources connect to.<br>
+ */
+public class PoolSpec {
+    private int initialSize;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private Executor executor;
+
+    /**
+     * @param initialSize how many resources to create on open, minIdle if larger, maxTotal if smaller. 0 by default.
+     * @return this spec
+     */
+    public PoolSpec setInitialSize(int initialSize) {
+
+        if (initialSize < 0) {
+            throw new IllegalArgumentException("initialSize must not be negative");
+        }
+        this.initialSize = initialSize;
+        return this;
+    }
+
+    /**
+     * @param parallelism how many resources to create at once, the number of available processors by default
+     * @return this spec
+     */
+    public PoolSpec setParallelism(int parallelism) {
+
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param executor runs the creations, or <code>null</code> for the pool's creation executor, the default. See
+     *            {@link LockProg#setCreationExecutor(Executor)}.
+     * @return this spec
+     */
+    public PoolSpec setExecutor(Executor executor) {
+
+        this.executor = executor;
+        return this;
+    }
+
+    int getInitialSize() {
+
+        return initialSize;
+    }
+
+    int getParallelism() {
+
+        return parallelism;
+    }
+
+    Executor getExecutor() {
+
+        return executor;
+    }
+}
@@ -0,0 +1,22 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a pooled resource into bytes and back, for {@link LockProg#snapshot(java.nio.file.Path, ResourceCodec)}. A resource
+ * is written as a descriptor it can be rebuilt from, such as a host and port, not as its live state.
+ *
+ * @param <R>
+ */
+public interface ResourceCodec<R> {
+
+    /**
+     * @param resource the resource to write
+     * @return its descriptor
+     */
+    byte[] encode(R resource);
+
+    /**
+     * @param bytes exactly one descriptor written by {@link #encode(Object)}, from its position to its limit
+     * @return the resource rebuilt from it
+     */
+    R decode(ByteBuffer bytes);
+}
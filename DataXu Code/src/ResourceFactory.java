@@ -0,0 +1,27 @@
+/**
+ * Creates and destroys the resources of a factory-backed pool. The pool calls it without holding its lock, so a slow create
+ * only delays the caller that needed the new resource.
+ *
+ * @param <R>
+ */
+public interface ResourceFactory<R> {
+
+    /**
+     * Creates a new resource. Every call must return a resource that is not already in the pool.
+     *
+     * @return the new resource, or <code>null</code> if there is no room for one right now. Acquire then waits as if the pool
+     *         were full.
+     * @throws RuntimeException if the resource cannot be created, passed on to the acquire that asked for it
+     */
+    R create();
+
+    /**
+     * Releases whatever the resource holds. Called for resources the pool drops on its own, for example the free resources
+     * still in the pool when it closes. Does nothing by default.
+     *
+     * @param resource the resource dropped by the pool
+     */
+    default void destroy(R resource) {
+
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Checks the health of a pooled resource. The pool calls it without holding its lock.
+ *
+ * @param <R>
+ */
+public interface ResourceValidator<R> {
+
+    /**
+     * @param resource the resource to check
+     * @return <code>true</code> if the resource can still be used, <code>false</code> to drop it from the pool. Throwing counts
+     *         as <code>false</code>.
+     */
+    boolean validate(R resource);
+}
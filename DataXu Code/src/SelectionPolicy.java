@@ -0,0 +1,24 @@
+/**
+ * Which free resource acquire takes.
+ */
+public enum SelectionPolicy {
+
+    /**
+     * Take the resource free the longest. A released resource goes behind every free one, so the free resources are handed out
+     * round-robin. Every resource is used in turn, so all of them stay lukewarm and none is idle long enough to be evicted. The
+     * default.
+     */
+    FIFO,
+
+    /**
+     * Take the resource released last. A light load is served by a few hot resources that stay in cache, while the rest stay
+     * idle at the far end of the queue where the idle timeout evicts them.
+     */
+    LIFO,
+
+    /**
+     * Take the free resource acquired the fewest times, spreading wear evenly. Counts more than 63 apart are not told apart, a
+     * resource further behind counts as the least used and one further ahead as the most used.
+     */
+    LEAST_USED
+}
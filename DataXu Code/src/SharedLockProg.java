@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of a fixed set of resources shared by every process on the host that opens the same lease file, for example licensed
+ * device slots or port ranges. There is no broker, the processes coordinate through the file.<br>
+ * Design Decisions<br>
+ * -The file is memory mapped and holds one 64 bit lease word per resource, in the order of the resource list, so every process
+ * must list the same resources in the same order. A word is 0 while the resource is free, else the holder's token in the high
+ * half and a stamp the holder changes on every heartbeat in the low half.<br>
+ * -Words are only ever changed with a CAS through a VarHandle on the mapped buffer. Acquire swaps 0 for its own word, release
+ * swaps its own word for 0. Token and heartbeat change together, so a lease is never seen taken with a stale heartbeat.<br>
+ * -Each open pool has a random token and restamps every lease it holds on a shared daemon thread, a third of the timeout
+ * apart. A lease whose word has not changed for the timeout belongs to a process that died, or stalled for that long, and is
+ * taken over with a CAS from the stale word, which fails if the holder came back in the meantime.<br>
+ * -No clock is shared between processes. A waiting pool notes when it first saw each word and measures how long it stays
+ * unchanged with its own System.nanoTime, so a wall clock jump in any process cannot make a live lease look stale. The price
+ * is that a pool watches a lease for a whole timeout before taking it over, however long it was dead before.<br>
+ * -Releases in this process wake waiters at once. Releases in other processes are only seen by polling, waiters look again
+ * every millisecond at first, backing off to every 10 milliseconds.<br>
+ *
+ * @param <R>
+ */
+public class SharedLockProg<R> {
+    /**
+     * Size of the header, a magic number and the resource count in one word.
+     */
+    static final int HEADER_BYTES = 8;
+
+    private static final long MAGIC = 0x4C6F636BL << 32;
+
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final long MIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private volatile boolean isOpen = false;
+
+    private final Path file;
+
+    private final List<R> resources;
+
+    private final Map<R, Integer> slots;
+
+    private final long timeoutMillis;
+
+    private final long timeoutNanos;
+
+    /**
+     * Per slot, the word of another pool's lease last seen by a waiting acquire and when it was first seen, in
+     * {@link System#nanoTime()} units. Guarded by the lock.
+     */
+    private final long[] seenWords;
+
+    private final long[] seenSince;
+
+    /**
+     * The low half of the words this pool writes, a new one for every acquire and heartbeat so a word never comes back.
+     */
+    private final AtomicInteger stamps = new AtomicInteger();
+
+    private FileChannel channel;
+
+    private volatile MappedByteBuffer table;
+
+    /**
+     * The high half of every lease word this pool writes, never 0.
+     */
+    private long token;
+
+    private ScheduledFuture<?> heartbeat;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    private static final class Heartbeat {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread thread = new Thread(r, "SharedLockProg-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * @param file the lease file, created if missing
+     * @param resources the resources, in the same order in every process
+     * @param timeout how long a lease may go without a heartbeat before another process takes it over
+     * @param timeUnit the time unit of the {@code timeout} argument
+     */
+    public SharedLockProg(Path file, List<R> resources, long timeout, TimeUnit timeUnit) {
+
+        if (file == null || resources == null) {
+            throw new NullPointerException();
+        }
+        long millis = timeUnit.toMillis(timeout);
+        if (millis < 3L) {
+            throw new IllegalArgumentException("timeout must be at least 3 milliseconds");
+        }
+        this.file = file;
+        this.resources = new ArrayList<R>(resources);
+        this.slots = new HashMap<R, Integer>();
+        for (int i = 0; i < this.resources.size(); i++) {
+            if (slots.put(this.resources.get(i), i) != null) {
+                throw new IllegalArgumentException("Duplicate resource");
+            }
+        }
+        this.timeoutMillis = millis;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        this.seenWords = new long[this.resources.size()];
+        this.seenSince = new long[this.resources.size()];
+    }
+
+    /**
+     * Opens the pool, mapping the lease file.
+     *
+     * @throws UncheckedIOException if the file cannot be mapped
+     * @throws IllegalStateException if the file was created for a different number of resources
+     */
+    public void open() {
+
+        lock.lock();
+        try {
+            if (isOpen) {
+                throw new IllegalStateException("Already open");
+            }
+            FileChannel channel = null;
+            MappedByteBuffer table;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                table = channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_BYTES + 8L * resources.size());
+            } catch (IOException e) {
+                close(channel);
+                throw new UncheckedIOException(e);
+            }
+            // the first process to open the file stamps it, later ones check they agree on its size
+            long header = MAGIC | resources.size();
+            long found = (long) WORDS.compareAndExchange(table, 0, 0L, header);
+            if (found != 0L && found != header) {
+                close(channel);
+                throw new IllegalStateException("Lease file holds a different set of resources");
+            }
+            long next;
+            do {
+                next = ThreadLocalRandom.current().nextInt() & 0xFFFFFFFFL;
+            } while (next == 0L);
+            token = next << 32;
+            Arrays.fill(seenWords, 0L);
+            long period = Math.max(1L, timeoutMillis / 3);
+            heartbeat = Heartbeat.EXECUTOR.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+
+                    beat();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+            this.channel = channel;
+            this.table = table;
+            isOpen = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    public boolean isOpen() {
+
+        return isOpen;
+    }
+
+    /**
+     * Closes the pool. Every lease this process still holds is released, so other processes need not wait for it to time out.
+     *
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public void close() {
+
+        lock.lock();
+        try {
+            checkOpen();
+            isOpen = false;
+            heartbeat.cancel(false);
+            heartbeat = null;
+            for (int i = 0; i < resources.size(); i++) {
+                long word = word(i);
+                if ((word & 0xFFFFFFFF00000000L) == token) {
+                    WORDS.compareAndSet(table, offset(i), word, 0L);
+                }
+            }
+            close(channel);
+            channel = null;
+            table = null;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a resource is free in every process sharing the file.
+     *
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public R acquire() throws InterruptedException {
+
+        return acquire(false, 0L);
+    }
+
+    /**
+     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval, null is
+     * returned.
+     *
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    public R acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        return acquire(true, timeUnit.toNanos(timeout));
+    }
+
+    private R acquire(boolean timed, long nanos) throws InterruptedException {
+
+        R resource = poll(false);
+        if (resource != null) {
+            return resource;
+        }
+        long poll = MIN_POLL_NANOS;
+        lock.lock();
+        try {
+            while (true) {
+                resource = poll(true);
+                if (resource != null) {
+                    return resource;
+                }
+                if (timed && nanos <= 0L) {
+                    return null;
+                }
+                long wait = timed ? Math.min(poll, nanos) : poll;
+                long left = released.awaitNanos(wait);
+                if (timed) {
+                    nanos -= wait - left;
+                }
+                poll = Math.min(poll * 2, MAX_POLL_NANOS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the resource back to the pool.
+     *
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>, if the resource is not in the pool
+     *             or if another process took the lease over after it timed out
+     */
+    public void release(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Integer slot = slots.get(resource);
+        if (slot == null) {
+            throw new IllegalStateException("No such resource in the pool");
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            long word = word(slot);
+            if (word == 0L) {
+                return;
+            }
+            // the heartbeat takes this lock too, only a takeover by another process changes the word in between
+            if ((word & 0xFFFFFFFF00000000L) != token || !WORDS.compareAndSet(table, offset(slot), word, 0L)) {
+                throw new IllegalStateException("Lease lost");
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the first free lease, or with takeOver the first one whose word stayed the same for the timeout, starting at a
+     * random slot so processes do not all contend for the first one.
+     * 
+     * @param takeOver <code>true</code> to watch the leases of other pools and take over stale ones, only with the lock held
+     */
+    private R poll(boolean takeOver) {
+
+        MappedByteBuffer table = this.table;
+        if (table == null) {
+            throw new IllegalStateException("Not open");
+        }
+        int size = resources.size();
+        if (size == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long mine = token | (stamps.incrementAndGet() & 0xFFFFFFFFL);
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            long word = (long) WORDS.getVolatile(table, offset(slot));
+            boolean stale = false;
+            if (word != 0L && takeOver && (word & 0xFFFFFFFF00000000L) != token) {
+                if (word != seenWords[slot]) {
+                    seenWords[slot] = word;
+                    seenSince[slot] = now;
+                } else {
+                    stale = now - seenSince[slot] > timeoutNanos;
+                }
+            }
+            if ((word == 0L || stale) && WORDS.compareAndSet(table, offset(slot), word, mine)) {
+                return resources.get(slot);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives every lease this pool holds a new stamp.
+     */
+    private void beat() {
+
+        lock.lock();
+        try {
+            if (!isOpen) {
+                return;
+            }
+            long mine = token | (stamps.incrementAndGet() & 0xFFFFFFFFL);
+            for (int i = 0; i < resources.size(); i++) {
+                long word = word(i);
+                if ((word & 0xFFFFFFFF00000000L) == token) {
+                    WORDS.compareAndSet(table, offset(i), word, mine);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long word(int slot) {
+
+        return (long) WORDS.getVolatile(table, offset(slot));
+    }
+
+    private static int offset(int slot) {
+
+        return HEADER_BYTES + 8 * slot;
+    }
+
+    private static void close(FileChannel channel) {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the mapping stays valid, nothing else to release
+            }
+        }
+    }
+
+    private void checkOpen() {
+
+        if (!isOpen) {
+            throw new IllegalStateException("Not open");
+        }
+    }
+}
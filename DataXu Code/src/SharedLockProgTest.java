@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SharedLockProg}. Two pools on the same file stand in for two processes.
+ */
+public class SharedLockProgTest {
+
+    private static final List<String> SLOTS = Arrays.asList("a", "b", "c");
+
+    private Path file;
+
+    private SharedLockProg<String> first;
+
+    private SharedLockProg<String> second;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        file = Files.createTempFile("leases", ".bin");
+        first = new SharedLockProg<String>(file, SLOTS, 200, TimeUnit.MILLISECONDS);
+        second = new SharedLockProg<String>(file, SLOTS, 200, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+
+        if (first.isOpen()) {
+            first.close();
+        }
+        if (second.isOpen()) {
+            second.close();
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Test method for {@link SharedLockProg#acquire()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testAcquireException() throws InterruptedException {
+
+        first.acquire();
+    }
+
+    /**
+     * Both pools hand out every resource once between them and wait for each other's releases.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireAcrossPools() throws InterruptedException {
+
+        first.open();
+        second.open();
+        Set<String> acquired = new HashSet<String>();
+        Assert.assertTrue(acquired.add(first.acquire()));
+        Assert.assertTrue(acquired.add(second.acquire()));
+        final String last = first.acquire();
+        Assert.assertTrue(acquired.add(last));
+        Assert.assertNull(second.acquire(20, TimeUnit.MILLISECONDS));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(50);
+                    first.release(last);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertEquals(last, second.acquire(1000, TimeUnit.MILLISECONDS));
+        // heartbeats keep the leases of a live pool well past the timeout
+        Thread.sleep(500);
+        Assert.assertNull(second.acquire(20, TimeUnit.MILLISECONDS));
+        // closing gives up the leases of the pool at once
+        first.close();
+        Assert.assertNotNull(second.acquire(20, TimeUnit.MILLISECONDS));
+        Assert.assertNull(second.acquire(20, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A lease left by a process that died is taken over once its word has not changed for the timeout.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeadLeaseReclaimed() throws Exception {
+
+        first.open();
+        // a dead process holding "b"
+        long word = (0x1234L << 32) | 7L;
+        writeWord(1, word);
+        Assert.assertNotNull(first.acquire());
+        Assert.assertNotNull(first.acquire());
+        Assert.assertNull(first.acquire(20, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("b", first.acquire(1000, TimeUnit.MILLISECONDS));
+        // taken over in turn while this pool stalled
+        writeWord(1, word);
+        try {
+            first.release("b");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Lease lost", e.getMessage());
+        }
+    }
+
+    /**
+     * A file made for another set of resources is refused.
+     */
+    @Test
+    public void testMismatchedFile() {
+
+        first.open();
+        try {
+            new SharedLockProg<String>(file, Arrays.asList("a"), 200, TimeUnit.MILLISECONDS).open();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Lease file holds a different set of resources", e.getMessage());
+        }
+    }
+
+    private void writeWord(int slot, long word) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(0, word);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        try {
+            channel.write(buffer, SharedLockProg.HEADER_BYTES + 8L * slot);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Same contract as {@link LockProg} with the resources split across independent stripes.<br>
+ * Design Decisions<br>
+ * -Each stripe has its own lock, members, free set and acquired set. A resource always lives in the stripe picked by its hash,
+ * so release, add and remove go straight to one stripe and only take that stripe's lock.<br>
+ * -A thread picks its home stripe from its id and tries it first. Only when the home stripe has nothing free does it walk the
+ * neighbouring stripes and steal from the first one that has.<br>
+ * -Threads that find every stripe empty park on a separate lock. Releasers only take that lock when the waiter counters say
+ * somebody is parked, so it is off the path whenever the pool has free resources.<br>
+ * -close takes every stripe lock, in order, once nothing appears to be in use, and only then marks the pool closed. Lock
+ * order is always the park lock before a stripe lock, and stripes in ascending order.<br>
+ *
+ * @param <R>
+ */
+public class StripedLockProg<R> implements Pool<R> {
+    private volatile boolean isOpen = false;
+
+    private final Stripe<R>[] stripes;
+
+    private final int mask;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    private final AtomicInteger acquireWaiters = new AtomicInteger();
+
+    private final AtomicInteger releaseWaiters = new AtomicInteger();
+
+    private final ReentrantLock parkLock = new ReentrantLock();
+
+    private final Condition freeQueueNotEmpty = parkLock.newCondition();
+
+    private final Condition change = parkLock.newCondition();
+
+    static final class Stripe<R> {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final Set<R> members = new HashSet<R>();
+
+        final LinkedHashSet<R> freeQueue = new LinkedHashSet<R>();
+
+        final Set<R> acquired = new HashSet<R>();
+    }
+
+    /**
+     * Creates a pool with one stripe per available processor, rounded up to a power of two.
+     */
+    public StripedLockProg() {
+
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripeCount the number of stripes, rounded up to a power of two
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public StripedLockProg(int stripeCount) {
+
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount must be positive");
+        }
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe<R>();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Opens the pool. No resource are allowed to be acquired unless the poll is open.
+     */
+    @Override
+    public void open() {
+
+        parkLock.lock();
+        try {
+            if (isOpen) {
+                throw new IllegalStateException("Already open");
+            }
+            inUse.set(0);
+            isOpen = true;
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the pool is open <code>false</code> if the pool is closed
+     */
+    @Override
+    public boolean isOpen() {
+
+        return isOpen;
+    }
+
+    /**
+     * This blocks until all acquired resources are released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public void close() throws InterruptedException {
+
+        parkLock.lock();
+        releaseWaiters.incrementAndGet();
+        try {
+            checkOpen();
+            while (true) {
+                while (inUse.get() > 0) {
+                    change.await();
+                    checkOpen();
+                }
+                if (shutdown(false)) {
+                    break;
+                }
+            }
+        } finally {
+            releaseWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * This closes the pool immediately without waiting for all acquired resources to be released.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public void closeNow() throws InterruptedException {
+
+        parkLock.lock();
+        try {
+            checkOpen();
+            shutdown(true);
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a resource is available.
+     *
+     * @return the resource acquired
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public R acquire() throws InterruptedException {
+
+        checkOpen();
+        R resource = poll();
+        if (resource != null) {
+            return resource;
+        }
+        return await(false, 0L);
+    }
+
+    /**
+     * Tries to acquire a resource within a given time. If a resource cannot be acquired within the timeout interval, null is
+     * returned.
+     *
+     * @param timeout the maximum time to wait
+     * @param timeUnit the time unit of the {@code timeout} argument
+     * @return the resource acquired or null if the resource was not acquired within the timeout interval
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public R acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+
+        checkOpen();
+        R resource = poll();
+        if (resource != null) {
+            return resource;
+        }
+        return await(true, timeUnit.toNanos(timeout));
+    }
+
+    /**
+     * Release the resource back to the pool.
+     *
+     * @param resource the resource released
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code> or if the resource is not in the pool
+     */
+    @Override
+    public void release(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Stripe<R> stripe = stripeFor(resource);
+        stripe.lock.lock();
+        try {
+            checkOpen();
+            if (!stripe.members.contains(resource)) {
+                throw new IllegalStateException("No such resource in the pool");
+            }
+            if (!stripe.acquired.remove(resource)) {
+                return;
+            }
+            stripe.freeQueue.add(resource);
+        } finally {
+            stripe.lock.unlock();
+        }
+        inUse.decrementAndGet();
+        signalWaiters();
+    }
+
+    /**
+     * Add the resource to the pool.
+     *
+     * @param resource the resource to be added to the pool
+     * @return <code>true</code> if the resource was added to the pool <code>false</code> if the resource is already in the pool
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean add(R resource) {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Stripe<R> stripe = stripeFor(resource);
+        stripe.lock.lock();
+        try {
+            checkOpen();
+            if (!stripe.members.add(resource)) {
+                return false;
+            }
+            stripe.freeQueue.add(resource);
+        } finally {
+            stripe.lock.unlock();
+        }
+        signalWaiters();
+        return true;
+    }
+
+    /**
+     * Remove the resource from the pool. This method blocks if the resource that is being removed is currently in use, until that
+     * resource has been released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean remove(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Stripe<R> stripe = stripeFor(resource);
+        parkLock.lock();
+        releaseWaiters.incrementAndGet();
+        try {
+            while (true) {
+                stripe.lock.lock();
+                try {
+                    checkOpen();
+                    if (!stripe.members.contains(resource)) {
+                        return false;
+                    }
+                    if (stripe.freeQueue.remove(resource)) {
+                        stripe.members.remove(resource);
+                        return true;
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+                change.await();
+            }
+        } finally {
+            releaseWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the resource from the pool immediately without waiting for it to be released.
+     *
+     * @param resource the resource to be removed from the pool
+     * @return <code>true</code> if the resource was removed to the pool <code>false</code> otherwise
+     * @throws InterruptedException if the current thread is interrupted
+     * @throws IllegalStateException if the pool is closed, isOpen returns <code>false</code>
+     */
+    @Override
+    public boolean removeNow(R resource) throws InterruptedException {
+
+        if (resource == null) {
+            throw new NullPointerException();
+        }
+        Stripe<R> stripe = stripeFor(resource);
+        boolean wasAcquired;
+        stripe.lock.lock();
+        try {
+            checkOpen();
+            if (!stripe.members.remove(resource)) {
+                return false;
+            }
+            stripe.freeQueue.remove(resource);
+            wasAcquired = stripe.acquired.remove(resource);
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (wasAcquired) {
+            inUse.decrementAndGet();
+        }
+        signalWaiters();
+        return true;
+    }
+
+    /**
+     * Tries the calling thread's home stripe, then steals from the neighbouring stripes in turn.
+     */
+    private R poll() {
+
+        int home = homeStripe();
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe<R> stripe = stripes[(home + i) & mask];
+            stripe.lock.lock();
+            try {
+                checkOpen();
+                if (stripe.freeQueue.isEmpty()) {
+                    continue;
+                }
+                Iterator<R> it = stripe.freeQueue.iterator();
+                R resource = it.next();
+                it.remove();
+                stripe.acquired.add(resource);
+                inUse.incrementAndGet();
+                return resource;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Slow path of acquire, only taken when every stripe was empty. The waiter is counted before the stripes are checked again
+     * under the park lock, so a release either sees the waiter and signals, or the waiter sees the released resource.
+     */
+    private R await(boolean timed, long nanos) throws InterruptedException {
+
+        acquireWaiters.incrementAndGet();
+        parkLock.lock();
+        try {
+            while (true) {
+                checkOpen();
+                R resource = poll();
+                if (resource != null) {
+                    return resource;
+                }
+                if (!timed) {
+                    freeQueueNotEmpty.await();
+                } else if (nanos <= 0L) {
+                    return null;
+                } else {
+                    nanos = freeQueueNotEmpty.awaitNanos(nanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the signal may have been meant for this thread, pass it on
+            freeQueueNotEmpty.signal();
+            throw e;
+        } finally {
+            acquireWaiters.decrementAndGet();
+            parkLock.unlock();
+        }
+    }
+
+    private void signalWaiters() {
+
+        if (acquireWaiters.get() == 0 && releaseWaiters.get() == 0) {
+            return;
+        }
+        parkLock.lock();
+        try {
+            freeQueueNotEmpty.signal();
+            change.signalAll();
+        } finally {
+            parkLock.unlock();
+        }
+    }
+
+    /**
+     * Locks every stripe and closes the pool. Unless <code>force</code> is set, gives up and returns <code>false</code> when a
+     * resource was acquired after close saw nothing in use.
+     */
+    private boolean shutdown(boolean force) {
+
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stripes[locked].lock.lock();
+                if (!force && !stripes[locked].acquired.isEmpty()) {
+                    return false;
+                }
+            }
+            isOpen = false;
+            for (Stripe<R> stripe : stripes) {
+                stripe.members.clear();
+                stripe.freeQueue.clear();
+                stripe.acquired.clear();
+            }
+            inUse.set(0);
+            freeQueueNotEmpty.signalAll();
+            change.signalAll();
+            return true;
+        } finally {
+            for (int i = Math.min(locked, stripes.length - 1); i >= 0; i--) {
+                stripes[i].lock.unlock();
+            }
+        }
+    }
+
+    private Stripe<R> stripeFor(R resource) {
+
+        int h = resource.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    private int homeStripe() {
+
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & mask;
+    }
+
+    private void checkOpen() {
+
+        if (!isOpen) {
+            throw new IllegalStateException("Not open");
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link StripedLockProg}.
+ */
+public class StripedLockProgTest {
+
+    private StripedLockProg<Integer> pool;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        pool = new StripedLockProg<Integer>(4);
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+
+        pool = null;
+    }
+
+    /**
+     * Test method for {@link StripedLockProg#close()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testCloseException() throws InterruptedException {
+
+        pool.close();
+    }
+
+    /**
+     * Every resource can be acquired from one thread, whatever stripe it lives in.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireStealsFromAllStripes() throws InterruptedException {
+
+        pool.open();
+        Set<Integer> acquired = new HashSet<Integer>();
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(pool.add(i));
+        }
+        Assert.assertFalse(pool.add(3));
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(acquired.add(pool.acquire()));
+        }
+        Assert.assertNull(pool.acquire(1000, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test method for {@link StripedLockProg#acquire(long, TimeUnit)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAcquireWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertEquals(value, pool.acquire(1000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test method for {@link StripedLockProg#remove(Object)}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRemoveWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(pool.remove(value));
+        Assert.assertFalse(pool.remove(value));
+    }
+
+    /**
+     * Test method for {@link StripedLockProg#close()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCloseWaitsForRelease() throws InterruptedException {
+
+        pool.open();
+        final Integer value = 5;
+        Assert.assertTrue(pool.add(value));
+        Assert.assertEquals(value, pool.acquire());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.release(value);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        pool.close();
+        Assert.assertFalse(pool.isOpen());
+    }
+
+    /**
+     * Test method for {@link StripedLockProg#closeNow()}.
+     *
+     * @throws InterruptedException
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testCloseNowWakesRemove() throws InterruptedException {
+
+        pool.open();
+        Assert.assertTrue(pool.add(5));
+        pool.acquire();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(100);
+                    pool.closeNow();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        pool.remove(5);
+    }
+
+    /**
+     * Many threads acquiring and releasing a small pool must never hold the same resource at the same time.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testConcurrentAcquireRelease() throws InterruptedException {
+
+        pool.open();
+        final int size = 6;
+        final AtomicBoolean[] held = new AtomicBoolean[size];
+        for (int i = 0; i < size; i++) {
+            held[i] = new AtomicBoolean();
+            Assert.assertTrue(pool.add(i));
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            Integer resource = pool.acquire();
+                            if (!held[resource].compareAndSet(false, true)) {
+                                errors.incrementAndGet();
+                            }
+                            held[resource].set(false);
+                            pool.release(resource);
+                        }
+                    } catch (InterruptedException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, errors.get());
+        pool.close();
+    }
+}
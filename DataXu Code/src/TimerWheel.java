@@ -0,0 +1,136 @@
+import java.util.List;
+
+/**
+ * Hashed timer wheel. Timeouts are hashed into a ring of slots by their deadline, and advancing the wheel only looks at the
+ * slots whose tick has passed, so scheduling, cancelling and expiring a timeout are constant time whatever the number of
+ * timeouts.<br>
+ * Design Decisions<br>
+ * -Each slot is an intrusive doubly linked list of timeouts. Rescheduling or cancelling unlinks the timeout in place.<br>
+ * -A deadline further away than one turn of the wheel stays in its slot and is skipped until its turn comes. The wheel is sized
+ * so that most deadlines fit in one turn.<br>
+ * -Not thread safe. The owning pool guards it with its own lock.<br>
+ *
+ * @param <T>
+ */
+class TimerWheel<T> {
+    private final Timeout<T>[] slots;
+
+    private final int mask;
+
+    private final long tickNanos;
+
+    private final long start;
+
+    /**
+     * The last tick advance has expired, counted from start.
+     */
+    private long tick;
+
+    static final class Timeout<T> {
+        final T value;
+
+        long deadline;
+
+        Timeout<T> prev;
+
+        Timeout<T> next;
+
+        /**
+         * The slot the timeout is linked into, <code>-1</code> when it is not scheduled.
+         */
+        int slot = -1;
+
+        Timeout(T value) {
+
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param tickNanos the resolution of the wheel, in nanoseconds
+     * @param slotCount the number of slots, rounded up to a power of two
+     * @param now the current {@link System#nanoTime()}
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TimerWheel(long tickNanos, int slotCount, long now) {
+
+        int size = Integer.highestOneBit(slotCount);
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.tickNanos = tickNanos;
+        this.start = now;
+    }
+
+    /**
+     * Schedules the timeout, moving it if it was already scheduled.
+     *
+     * @param deadline when the timeout expires, in {@link System#nanoTime()} units
+     */
+    void schedule(Timeout<T> timeout, long deadline) {
+
+        cancel(timeout);
+        timeout.deadline = deadline;
+        // never behind the wheel, a deadline already passed expires on the next tick
+        long ticks = Math.max((deadline - start + tickNanos - 1) / tickNanos, tick + 1);
+        int slot = (int) ticks & mask;
+        Timeout<T> head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.slot = slot;
+    }
+
+    /**
+     * Unschedules the timeout. Does nothing if it is not scheduled.
+     */
+    void cancel(Timeout<T> timeout) {
+
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev == null) {
+            slots[timeout.slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    /**
+     * Expires every timeout whose deadline has passed, in the slots of the ticks since the last call.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @param expired receives the values of the expired timeouts, which are no longer scheduled
+     */
+    void advance(long now, List<T> expired) {
+
+        long target = (now - start) / tickNanos;
+        // one turn visits every slot, going further would only visit them again
+        long from = Math.max(tick + 1, target - mask);
+        for (long t = from; t <= target; t++) {
+            Timeout<T> timeout = slots[(int) t & mask];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.deadline - now <= 0L) {
+                    cancel(timeout);
+                    expired.add(timeout.value);
+                }
+                timeout = next;
+            }
+        }
+        if (target > tick) {
+            tick = target;
+        }
+    }
+}
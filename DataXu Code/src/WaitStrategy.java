@@ -0,0 +1,23 @@
+/**
+ * How a thread waits for a resource when none is free.
+ */
+public enum WaitStrategy {
+
+    /**
+     * Park on a condition straight away. Costs no CPU while waiting but a context switch on every hand-off. The default.
+     */
+    PARK,
+
+    /**
+     * Spin, then yield, for about as long as resources have recently been held, then park. When resources are held for a few
+     * microseconds the hand-off usually lands while the thread is still spinning and the context switch is saved. When they are
+     * held for longer than the spin limit the thread parks straight away.
+     */
+    SPIN_THEN_PARK,
+
+    /**
+     * Never park, spin until a resource is handed over, the timeout expires or the thread is interrupted. Lowest latency, but
+     * every waiting thread keeps a core busy. Only for threads on dedicated cores.
+     */
+    BUSY_SPIN
+}
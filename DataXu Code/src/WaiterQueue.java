@@ -0,0 +1,283 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Priority queue of threads waiting for a resource. A released resource is handed to the waiter at the head and only that
+ * waiter's condition is signalled, or its future completed.<br>
+ * Design Decisions<br>
+ * -Waiters are ordered by their arrival time moved forward by their priority, one aging step per level. A waiter of higher
+ * priority goes first, but only ahead of waiters that arrived less than its lead earlier, so old low priority waiters are
+ * never starved. Equal keys keep arrival order.<br>
+ * -Two indexed binary heaps, one for the waiters of one resource and one for batches, and the head is the first of their two
+ * heads. Every waiter knows its slot, so add, poll and the removal of a waiter that times out or is interrupted are O(log n),
+ * and peek, including the peek past the batches at the head, is constant time.<br>
+ * -Not thread safe. The owning pool guards it with its own lock and every waiter condition comes from that lock.<br>
+ *
+ * @param <R>
+ */
+class WaiterQueue<R> {
+    /**
+     * The waiters of one resource.
+     */
+    private final Heap<R> singles = new Heap<R>();
+
+    private final Heap<R> batches = new Heap<R>();
+
+    /**
+     * Arrival counter, breaks ties between equal keys.
+     */
+    private long sequence;
+
+    static final class Waiter<R> {
+        /**
+         * Signalled when a blocked thread is handed a resource, <code>null</code> for asynchronous waiters.
+         */
+        final Condition condition;
+
+        /**
+         * Completed when an asynchronous waiter is handed a resource, <code>null</code> for blocked threads.
+         */
+        final CompletableFuture<R> future;
+
+        /**
+         * The resource handed to this waiter, <code>null</code> until then.
+         */
+        R resource;
+
+        /**
+         * The node of the handed resource. A blocked thread checks it is still the resource's node once it holds the lock again,
+         * the resource may have been removed in between.
+         */
+        FreeList.Node<R> node;
+
+        /**
+         * Where a waiter for a batch is handed its resources, all at once, <code>null</code> for a waiter of a single resource.
+         * Set before the waiter is queued.
+         */
+        List<R> batch;
+
+        /**
+         * The size of the batch, handed over once that many can be granted together.
+         */
+        int wanted;
+
+        /**
+         * Why an asynchronous waiter failed without a resource, <code>null</code> when it failed because the pool closed.
+         */
+        RuntimeException failure;
+
+        /**
+         * Where an asynchronous acquire sampled for leak detection was called, <code>null</code> otherwise.
+         */
+        Throwable trace;
+
+        /**
+         * When the waiter was queued, in {@link System#nanoTime()} units.
+         */
+        long since;
+
+        /**
+         * The arrival time moved forward by the priority, smaller goes first.
+         */
+        long key;
+
+        long seq;
+
+        /**
+         * Set with the signal of a blocked thread, so a thread spinning without the lock sees it.
+         */
+        volatile boolean woken;
+
+        /**
+         * Chains the waiters the pool completes after unlocking. Not used by the queue.
+         */
+        Waiter<R> next;
+
+        /**
+         * The slot in the heap, <code>-1</code> when not queued.
+         */
+        int index = -1;
+
+        boolean linked;
+
+        Waiter(Condition condition) {
+
+            this.condition = condition;
+            this.future = null;
+        }
+
+        Waiter(CompletableFuture<R> future) {
+
+            this.condition = null;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Queues the waiter. Its since must be set, and its batch if it has one.
+     *
+     * @param boostNanos how far ahead of its arrival the waiter is ordered, its priority times the aging step
+     */
+    void add(Waiter<R> waiter, long boostNanos) {
+
+        waiter.key = waiter.since - boostNanos;
+        waiter.seq = sequence++;
+        requeue(waiter);
+    }
+
+    /**
+     * Queues a waiter again at the place it had before it was removed.
+     */
+    void requeue(Waiter<R> waiter) {
+
+        waiter.linked = true;
+        heapOf(waiter).add(waiter);
+    }
+
+    /**
+     * @return the waiter served next, still queued, or <code>null</code> if nobody waits
+     */
+    Waiter<R> peek() {
+
+        Waiter<R> single = singles.peek();
+        Waiter<R> batch = batches.peek();
+        if (single == null) {
+            return batch;
+        }
+        return batch == null || before(single, batch) ? single : batch;
+    }
+
+    /**
+     * @return the waiter of one resource served next, still queued, or <code>null</code> if only batches wait
+     */
+    Waiter<R> peekSingle() {
+
+        return singles.peek();
+    }
+
+    /**
+     * @return the waiter served next, unqueued, or <code>null</code> if nobody waits
+     */
+    Waiter<R> poll() {
+
+        Waiter<R> waiter = peek();
+        if (waiter != null) {
+            remove(waiter);
+        }
+        return waiter;
+    }
+
+    /**
+     * Unqueues the waiter. Does nothing if it is no longer queued.
+     */
+    void remove(Waiter<R> waiter) {
+
+        if (!waiter.linked) {
+            return;
+        }
+        waiter.linked = false;
+        heapOf(waiter).remove(waiter);
+    }
+
+    boolean isEmpty() {
+
+        return singles.size == 0 && batches.size == 0;
+    }
+
+    int size() {
+
+        return singles.size + batches.size;
+    }
+
+    private Heap<R> heapOf(Waiter<R> waiter) {
+
+        return waiter.batch == null ? singles : batches;
+    }
+
+    private static boolean before(Waiter<?> a, Waiter<?> b) {
+
+        long d = a.key - b.key;
+        return d < 0L || (d == 0L && a.seq < b.seq);
+    }
+
+    private static final class Heap<R> {
+        private Waiter<R>[] heap;
+
+        private int size;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Heap() {
+
+            heap = new Waiter[16];
+        }
+
+        Waiter<R> peek() {
+
+            return size == 0 ? null : heap[0];
+        }
+
+        void add(Waiter<R> waiter) {
+
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            siftUp(size++, waiter);
+        }
+
+        void remove(Waiter<R> waiter) {
+
+            int i = waiter.index;
+            Waiter<R> last = heap[--size];
+            heap[size] = null;
+            waiter.index = -1;
+            if (last != waiter) {
+                siftDown(i, last);
+                if (last.index == i) {
+                    siftUp(i, last);
+                }
+            }
+        }
+
+        private void siftUp(int i, Waiter<R> waiter) {
+
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                Waiter<R> p = heap[parent];
+                if (!before(waiter, p)) {
+                    break;
+                }
+                place(i, p);
+                i = parent;
+            }
+            place(i, waiter);
+        }
+
+        private void siftDown(int i, Waiter<R> waiter) {
+
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                Waiter<R> c = heap[child];
+                int right = child + 1;
+                if (right < size && before(heap[right], c)) {
+                    child = right;
+                    c = heap[child];
+                }
+                if (!before(c, waiter)) {
+                    break;
+                }
+                place(i, c);
+                i = child;
+            }
+            place(i, waiter);
+        }
+
+        private void place(int i, Waiter<R> waiter) {
+
+            heap[i] = waiter;
+            waiter.index = i;
+        }
+    }
+}